@@ -0,0 +1,491 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The set of candidate seeds, kept sorted (in unsigned order) and compressed.
+ *
+ * The seeds are stored in chunks of up to CHUNK_BYTES bytes. Each chunk holds its first seed
+ * directly, and then the gaps between consecutive seeds as varints. Weak observations can leave
+ * tens of millions of candidates, which are then only a few dozen apart, so most gaps fit in a
+ * byte or two instead of four. Growing never copies anything, since a full chunk just starts a new
+ * one.
+ *
+ * The chunks are also the unit of work for refine(): Each one can be decoded independently, and
+ * then overwritten with the seeds that survived. Any subset of a chunk's seeds encodes to no more
+ * bytes than the whole chunk did, so this happens in place.
+ *
+ * Once the set grows past the spill threshold, the chunks move off-heap, into a memory-mapped
+ * file. Everything works the same, it's just the OS paging the data instead of the GC. The file
+ * is deleted when the set is cleared, or shrinks back under the threshold. Files left behind by a
+ * crash are cleaned up by deleteSpillFiles() the next time the game starts.
+ *
+ * Seeds must be added in increasing (unsigned) order. Not thread-safe, except that different
+ * chunks can be decoded from different threads while nothing is being added.
+ */
+public class CandidateSet {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // Visible for testing
+    static final int CHUNK_BYTES = 1 << 14;
+    // The most bytes a single gap can take up.
+    private static final int MAX_VARINT = 5;
+    // The spill file is mapped in segments of this size, which must be a multiple of CHUNK_BYTES.
+    private static final int SEGMENT_BYTES = 1 << 26;
+    private static final String SPILL_PREFIX = "candidates-";
+    private static final String SPILL_SUFFIX = ".bin";
+
+    private static class Chunk {
+        ByteBuffer data;
+        int first;
+        int last;
+        int count;
+        int length; // Bytes used in data
+
+        Chunk(ByteBuffer data, int seed) {
+            this.data = data;
+            first = seed;
+            last = seed;
+            count = 1;
+        }
+    }
+
+    /** A memory-mapped file that hands out CHUNK_BYTES-sized pieces of itself. */
+    private static class SpillFile {
+        final Path path;
+        final FileChannel channel;
+        MappedByteBuffer segment;
+        long segmentStart;
+        int used = SEGMENT_BYTES;
+
+        SpillFile(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            path = Files.createTempFile(directory, SPILL_PREFIX, SPILL_SUFFIX);
+            // Mapped files can't be deleted on some platforms, so make sure it goes away eventually.
+            path.toFile().deleteOnExit();
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segmentStart = -SEGMENT_BYTES;
+        }
+
+        ByteBuffer allocate() throws IOException {
+            if (used == SEGMENT_BYTES) {
+                segmentStart += SEGMENT_BYTES;
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_BYTES);
+                used = 0;
+            }
+            ByteBuffer duplicate = segment.duplicate();
+            duplicate.position(used);
+            duplicate.limit(used + CHUNK_BYTES);
+            used += CHUNK_BYTES;
+            return duplicate.slice();
+        }
+
+        void delete() {
+            segment = null;
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't delete {}, it will be deleted on exit: {}", path, e);
+            }
+        }
+    }
+
+    private final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+    private int size;
+
+    // Where to put spill files. Only called when it's time to spill.
+    @Nullable
+    private Supplier<Path> spillDirectory;
+    private int spillThreshold;
+    @Nullable
+    private SpillFile spill;
+
+    /**
+     * Deletes every spill file in the directory. deleteOnExit() doesn't happen if the game crashes or
+     * is killed, and the files can be gigabytes, so this is run at startup, before anything spills.
+     */
+    public static void deleteSpillFiles(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SPILL_PREFIX + "*" + SPILL_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    Files.delete(file);
+                    LOGGER.info("Deleted stale candidate file {}", file);
+                } catch (IOException e) {
+                    // Most likely another copy of the game has it open.
+                    LOGGER.warn("Couldn't delete stale candidate file {}: {}", file, e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't look for stale candidate files in {}: {}", directory, e);
+        }
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * Sets where the seeds go once there are more than threshold of them. A threshold of zero (or
+     * less) means to always keep them on the heap.
+     */
+    public void setSpillPolicy(Supplier<Path> directory, int threshold) {
+        spillDirectory = directory;
+        spillThreshold = threshold;
+    }
+
+    public boolean isSpilled() { return spill != null; }
+
+    /** The bytes reserved for the seeds, whether on the heap or in the spill file. */
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Chunk chunk : chunks) {
+            // Emptied chunks have already let go of their data.
+            if (chunk.count > 0) {
+                bytes += chunk.data.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    /** Like memoryBytes(), but only what's on the heap. Spilled chunks are left to the OS to page. */
+    public long heapBytes() {
+        long bytes = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.count > 0 && !chunk.data.isDirect()) {
+                bytes += chunk.data.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    public void clear() {
+        chunks.clear();
+        size = 0;
+        if (spill != null) {
+            spill.delete();
+            spill = null;
+        }
+    }
+
+    /** Adds a seed, which must come after every seed already in the set. */
+    public void add(int seed) {
+        // Chunks at the end that retainInChunk() emptied have no room, and no last seed to check
+        // against, so they go, and the seed is checked against the last chunk that has any.
+        while (!chunks.isEmpty() && chunks.get(chunks.size() - 1).count == 0) {
+            chunks.remove(chunks.size() - 1);
+        }
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk != null && Integer.compareUnsigned(seed, chunk.last) <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("Seed 0x%08x added out of order, after 0x%08x", seed, chunk.last));
+        }
+        if (chunk == null || chunk.data.capacity() - chunk.length < MAX_VARINT) {
+            newChunk(seed);
+            return;
+        }
+        chunk.length = writeVarint(chunk.data, chunk.length, seed - chunk.last);
+        chunk.last = seed;
+        chunk.count++;
+        size++;
+    }
+
+    public void addAll(int[] seeds, int length) {
+        for (int i = 0; i < length; ++i) {
+            add(seeds[i]);
+        }
+    }
+
+    private void newChunk(int seed) {
+        if (spill == null && spillThreshold > 0 && size >= spillThreshold && spillDirectory != null) {
+            startSpill();
+        }
+        ByteBuffer data = null;
+        if (spill != null) {
+            try {
+                data = spill.allocate();
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't grow candidate file {}, continuing on the heap: {}", spill.path, e);
+            }
+        }
+        chunks.add(new Chunk(data != null ? data : ByteBuffer.allocate(CHUNK_BYTES), seed));
+        size++;
+    }
+
+    private void startSpill() {
+        SpillFile file;
+        try {
+            file = new SpillFile(spillDirectory.get());
+            for (Chunk chunk : chunks) {
+                if (chunk.count == 0) {
+                    continue;
+                }
+                ByteBuffer data = file.allocate();
+                ByteBuffer source = chunk.data.duplicate();
+                source.clear().limit(chunk.length);
+                data.put(source);
+                chunk.data = data;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Couldn't create candidate file, keeping {} candidates on the heap: {}", size, e);
+            // Don't keep trying
+            spillThreshold = 0;
+            return;
+        }
+        LOGGER.info("Moved {} candidates off-heap, into {}", size, file.path);
+        spill = file;
+    }
+
+    /** Returns the smallest seed. The set must not be empty. */
+    public int first() {
+        for (Chunk chunk : chunks) {
+            if (chunk.count > 0) {
+                return chunk.first;
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    public boolean contains(int seed) {
+        for (int i = 0; i < chunks.size(); ++i) {
+            Chunk chunk = chunks.get(i);
+            if (chunk.count == 0 || Integer.compareUnsigned(seed, chunk.last) > 0) {
+                continue;
+            }
+            int[] buffer = new int[chunk.count];
+            getChunk(i, buffer);
+            for (int candidate : buffer) {
+                if (candidate == seed) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return false;
+    }
+
+    public int chunkCount() { return chunks.size(); }
+
+    /** The number of seeds in the given chunk. */
+    public int chunkSize(int chunk) { return chunks.get(chunk).count; }
+
+    /**
+     * Decodes a chunk into out, which must have room for chunkSize(chunk) seeds. Returns the number
+     * of seeds written.
+     */
+    public int getChunk(int chunk, int[] out) {
+        Chunk c = chunks.get(chunk);
+        if (c.count == 0) {
+            return 0;
+        }
+        final ByteBuffer data = c.data;
+        int current = c.first;
+        out[0] = current;
+        int pos = 0;
+        for (int i = 1; i < c.count; ++i) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(pos++);
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += gap;
+            out[i] = current;
+        }
+        return c.count;
+    }
+
+    /**
+     * Replaces the contents of a chunk with a subset of its seeds (in the same order), re-using its
+     * storage. If a heap chunk shrank a lot, the storage is trimmed.
+     */
+    public void retainInChunk(int chunk, int[] seeds, int length) {
+        Chunk c = chunks.get(chunk);
+        if (length > c.count) {
+            throw new IllegalArgumentException("Can't grow a chunk from " + c.count + " to " + length);
+        }
+        size += length - c.count;
+        c.count = length;
+        c.length = 0;
+        if (length == 0) {
+            c.data = null;
+            return;
+        }
+        c.first = seeds[0];
+        for (int i = 1; i < length; ++i) {
+            c.length = writeVarint(c.data, c.length, seeds[i] - seeds[i - 1]);
+        }
+        c.last = seeds[length - 1];
+        if (spill == null && c.length < c.data.capacity() >> 2) {
+            c.data = ByteBuffer.wrap(Arrays.copyOf(c.data.array(), c.length));
+        }
+    }
+
+    /**
+     * Drops the chunks that were emptied by retainInChunk(). If the set is spilled and has shrunk
+     * back under the threshold, this also moves it back onto the heap.
+     */
+    public void removeEmptyChunks() {
+        chunks.removeIf(chunk -> chunk.count == 0);
+        if (spill != null && size < spillThreshold) {
+            for (Chunk chunk : chunks) {
+                byte[] data = new byte[chunk.length];
+                ByteBuffer source = chunk.data.duplicate();
+                source.clear();
+                source.get(data);
+                chunk.data = ByteBuffer.wrap(data);
+            }
+            LOGGER.info("Moved {} candidates back onto the heap", size);
+            spill.delete();
+            spill = null;
+        }
+    }
+
+    public int[] toArray() {
+        int[] result = new int[size];
+        int offset = 0;
+        int[] buffer = new int[0];
+        for (int i = 0; i < chunks.size(); ++i) {
+            int count = chunkSize(i);
+            if (buffer.length < count) {
+                buffer = new int[count];
+            }
+            getChunk(i, buffer);
+            System.arraycopy(buffer, 0, result, offset, count);
+            offset += count;
+        }
+        return result;
+    }
+
+    /** Writes the seeds in the same first-seed-then-gaps format that the chunks use. */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        PrimitiveIterator.OfInt iterator = iterator();
+        if (!iterator.hasNext()) {
+            return;
+        }
+        int previous = iterator.nextInt();
+        out.writeInt(previous);
+        while (iterator.hasNext()) {
+            int seed = iterator.nextInt();
+            int gap = seed - previous;
+            while ((gap & ~0x7F) != 0) {
+                out.writeByte(gap | 0x80);
+                gap >>>= 7;
+            }
+            out.writeByte(gap);
+            previous = seed;
+        }
+    }
+
+    /** Replaces the contents of this set with what write() wrote. */
+    public void read(DataInput in) throws IOException {
+        clear();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad candidate count " + count);
+        }
+        if (count == 0) {
+            return;
+        }
+        int seed = in.readInt();
+        add(seed);
+        for (int i = 1; i < count; ++i) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in.readByte();
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            seed += gap;
+            try {
+                add(seed);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /** Iterates over the seeds, in order. */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int chunk = -1;
+            private int index;
+            private int count;
+            private int[] buffer = new int[0];
+
+            @Override
+            public boolean hasNext() {
+                while (index >= count) {
+                    if (chunk + 1 >= chunks.size()) {
+                        return false;
+                    }
+                    chunk++;
+                    count = chunkSize(chunk);
+                    if (buffer.length < count) {
+                        buffer = new int[count];
+                    }
+                    getChunk(chunk, buffer);
+                    index = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return buffer[index++];
+            }
+        };
+    }
+
+    private static int writeVarint(ByteBuffer data, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            data.put(pos++, (byte) (value | 0x80));
+            value >>>= 7;
+        }
+        data.put(pos++, (byte) value);
+        return pos;
+    }
+}
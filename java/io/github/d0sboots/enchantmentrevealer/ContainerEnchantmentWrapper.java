@@ -110,6 +110,7 @@ public class ContainerEnchantmentWrapper extends ContainerEnchantment {
             newSeedObservation.truncatedSeed = (short) (xpSeed & -16);
 
             Observation itemObservation = observations.peek();
+            boolean timedOut = false;
             if (!newSeedObservation.equals(lastSeedObservation)) {
                 lastSeedObservation = newSeedObservation;
                 newSeedObservation = new Observation();
@@ -127,6 +128,7 @@ public class ContainerEnchantmentWrapper extends ContainerEnchantment {
                 if (newSeedObservation.isUnenchantable() || isEnchantableObservation(itemObservation)) {
                     LOGGER.info("Too many ticks waiting for {} ({} msec), using {}", lastSeedObservation,
                             System.currentTimeMillis() - itemObservation.now, itemObservation.item);
+                    timedOut = true;
                 } else {
                     // Keep waiting if we've got an enchantment seed with an unenchantable item - that will never work
                     // out, and probably indicates lag.
@@ -144,6 +146,7 @@ public class ContainerEnchantmentWrapper extends ContainerEnchantment {
             }
             observations.poll();
             itemObservation.merge(lastSeedObservation);
+            FlightEvents.observation(itemObservation, tick - itemObservation.tick, timedOut);
             worker.addObservation(itemObservation);
             lastObservation = itemObservation;
         }
@@ -0,0 +1,159 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.ArrayList;
+
+import javax.annotation.Nullable;
+
+import net.minecraft.client.gui.FontRenderer;
+import net.minecraft.client.resources.I18n;
+import net.minecraft.util.text.TextFormatting;
+
+/**
+ * Everything the GUI draws for one EnchantmentWorker.State, worked out once when the state shows up
+ * instead of on every frame: The names and how wide they are, the "+X more" lines and the tooltips.
+ * Drawing is then just a few drawString() calls.
+ */
+class EnchantLayout {
+    // The area the names are drawn in, in pixels from the left of the GUI.
+    static final int LEFT_BOUND = 78;
+    static final int RIGHT_BOUND = 166;
+    private static final int COLOR = 0x222222;
+
+    // Per slot. A null name means there's nothing to draw, and a null plusX means no second line.
+    private final String[] names = new String[3];
+    private final int[] widths = new int[3];
+    private final String[] plusX = new String[3];
+    @SuppressWarnings("unchecked")
+    final ArrayList<String>[] tooltips = new ArrayList[3];
+
+    EnchantLayout(EnchantmentWorker.State state, FontRenderer renderer, boolean verbose) {
+        for (int i = 0; i < 3; ++i) {
+            int[] enchants = state.enchants[i];
+            int[] counts = state.counts[i];
+            tooltips[i] = state.isEstimate() ? buildEstimateTooltip(enchants, counts)
+                    : buildTooltip(enchants, counts, verbose);
+            if (enchants.length == 0) {
+                continue;
+            }
+            if (state.isPartial()) {
+                tooltips[i].add(TextFormatting.GRAY + I18n.format("enchantmentrevealer.tooltip.partial"));
+            } else if (state.isEstimate()) {
+                tooltips[i].add(TextFormatting.GRAY + I18n.format("enchantmentrevealer.tooltip.estimated"));
+            }
+            names[i] = EnchantNames.get(enchants[0]);
+            widths[i] = renderer.getStringWidth(names[i]);
+            plusX[i] = formatPlusX(counts);
+        }
+    }
+
+    /**
+     * Draws the name for each slot, scrolling it if it doesn't fit, with the number of other
+     * possibilities under it. (midX, midY) is the top left of the GUI.
+     */
+    void draw(FontRenderer renderer, int midX, int midY, float scrollFraction) {
+        for (int i = 0; i < 3; ++i) {
+            if (names[i] == null) {
+                continue;
+            }
+            float adjust = (widths[i] <= RIGHT_BOUND - LEFT_BOUND ? 0.5F : scrollFraction)
+                    * (RIGHT_BOUND - LEFT_BOUND - widths[i]);
+            renderer.drawString(names[i], midX + LEFT_BOUND + adjust, midY + 15 + 19 * i, COLOR);
+            if (plusX[i] != null) {
+                renderer.drawString(plusX[i], midX + LEFT_BOUND + 2, midY + 24 + 19 * i, COLOR);
+            }
+        }
+    }
+
+    @Nullable
+    private static String formatPlusX(int[] enchantCounts) {
+        int ecLen = enchantCounts.length;
+        if (ecLen == 1) {
+            return null; // Don't do "+0 more"
+        }
+        final String plusX;
+        if (enchantCounts[ecLen - 1] == enchantCounts[0]) {
+            plusX = "" + (ecLen - 1);
+        } else {
+            int acc = 0;
+            for (int j = 1; j < ecLen; ++j) {
+                acc += enchantCounts[j];
+            }
+            int total = (int) (((acc * 200L + 1) / enchantCounts[0]) >>> 1);
+            plusX = String.format("%d.%02d", total / 100, total % 100);
+        }
+        return I18n.format("enchantmentrevealer.text.plusx", plusX);
+    }
+
+    private static ArrayList<String> buildTooltip(int[] enchants, int[] counts, boolean verbose) {
+        ArrayList<String> text = new ArrayList<String>();
+        StringBuilder builder = new StringBuilder();
+        boolean hidePercent = counts.length == 0 || counts[0] == counts[counts.length - 1];
+        String which = verbose ? "verbose" : "normal";
+        for (int j = 0; j < enchants.length; ++j) {
+            if (hidePercent) {
+                // Duplicate the highlighting of the normal GUI
+                builder.append(TextFormatting.WHITE);
+                builder.append(TextFormatting.ITALIC);
+            } else {
+                builder.append(TextFormatting.YELLOW);
+            }
+            builder.append(EnchantNames.get(enchants[j]));
+            builder.append(TextFormatting.RESET);
+            String styled = builder.toString();
+            if (hidePercent) {
+                text.add(I18n.format("enchantmentrevealer.tooltip." + which, styled, counts[j]));
+            } else {
+                text.add(I18n.format("enchantmentrevealer.tooltip.percent." + which,
+                        styled, percentage(counts[j], counts[0]), counts[j]));
+            }
+            builder.setLength(0);
+        }
+        return text;
+    }
+
+    /**
+     * Like buildTooltip(), but the counts are from a sample, so each enchant gets the range its
+     * chance is likely (95%) to be in, instead of a single number.
+     */
+    private static ArrayList<String> buildEstimateTooltip(int[] enchants, int[] counts) {
+        ArrayList<String> text = new ArrayList<String>();
+        for (int j = 0; j < enchants.length; ++j) {
+            // The Wilson score interval, which behaves for chances near 0 and 100%, unlike the
+            // usual p +- z*sqrt(p(1-p)/n).
+            double n = counts[0];
+            double p = counts[j] / n;
+            double z2 = 1.96 * 1.96;
+            double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+            double margin = 1.96 * Math.sqrt(p * (1 - p) / n + z2 / (4 * n * n)) / (1 + z2 / n);
+            text.add(I18n.format("enchantmentrevealer.tooltip.estimate",
+                    TextFormatting.YELLOW + EnchantNames.get(enchants[j]) + TextFormatting.RESET,
+                    Math.round(Math.max(0, center - margin) * 100), Math.round(Math.min(1, center + margin) * 100)));
+        }
+        return text;
+    }
+
+    private static String percentage(int numerator, int denominator) {
+        if (numerator * 2000L >= 199L * denominator) {
+            return ((numerator * 200L / denominator + 1L) >>> 1) + "";
+        }
+        if (numerator * 20000L >= 199L * denominator) {
+            int foo = (int) ((numerator * 2000L / denominator + 1L) >>> 1);
+            return foo / 10 + "." + foo % 10;
+        }
+        return String.format("0.%02d", (numerator * 20000L / denominator + 1L) >>> 1);
+    }
+}
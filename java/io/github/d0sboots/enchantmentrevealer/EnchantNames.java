@@ -0,0 +1,55 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.HashMap;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.enchantment.Enchantment;
+
+/**
+ * The translated names of enchantments, with their level, as shown in the GUI. The worker only
+ * deals in packed enchantments (see pack()), and the names are looked up here when they're drawn,
+ * so each one is translated once instead of for every result. Only used from the main (UI) thread.
+ */
+public class EnchantNames {
+    private static final HashMap<Integer, String> names = new HashMap<>();
+    // The language the names are in. Switching languages throws them all out.
+    private static String language;
+
+    private EnchantNames() {}
+
+    /** Packs an enchantment ID and level into one int. */
+    public static int pack(int id, int level) { return id << 16 | level & 0xFFFF; }
+
+    public static int getId(int packed) { return packed >> 16; }
+
+    public static int getLevel(int packed) { return (short) packed; }
+
+    /** The name of a packed enchantment, as in "Unbreaking III". */
+    public static String get(int packed) {
+        Minecraft minecraft = Minecraft.getInstance();
+        // There's no client in the benchmarks, but then the language doesn't change either.
+        String current = minecraft == null ? "" : minecraft.getLanguageManager().getCurrentLanguage().getCode();
+        if (!current.equals(language)) {
+            names.clear();
+            language = current;
+        }
+        return names.computeIfAbsent(packed, key -> {
+            Enchantment enchantment = Enchantment.getEnchantmentByID(getId(key));
+            return enchantment == null ? "unknown" : enchantment.func_200305_d(getLevel(key)).getString();
+        });
+    }
+}
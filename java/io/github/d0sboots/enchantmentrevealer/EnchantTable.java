@@ -0,0 +1,123 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.minecraft.enchantment.EnchantmentData;
+import net.minecraft.enchantment.EnchantmentHelper;
+import net.minecraft.init.Items;
+import net.minecraft.item.ItemStack;
+
+/**
+ * Everything the enchanting table could pick for one item, for each (modified) enchantability
+ * level, flattened into int arrays for SeedSolver.testEnchantFast().
+ *
+ * Each level's entries are exactly what EnchantmentHelper.getEnchantmentDatas() returns, in the
+ * same order. Alongside that are the weights and their running sums, for the first weighted pick,
+ * and for each entry a bitmask of the entries that EnchantmentHelper.removeIncompatible() would
+ * throw out after it was picked. Later picks then just mask those out and walk what's left. Nothing
+ * here changes after construction, so a table can be shared between threads, and they're normally
+ * gotten from EnchantTableCache instead of being built directly.
+ */
+public class EnchantTable {
+    // The highest level a slot can show, from the power being capped at 15.
+    private static final int MAX_SLOT_LEVEL = 30;
+
+    /**
+     * Per-thread scratch space for testEnchantFast(), which records the enchants it rolled for each
+     * slot here. It's sized for whichever table it's used with.
+     */
+    public static class Picks {
+        // The modified level each slot was rolled at, which is the index into the table, or -1 if
+        // the slot has no enchants.
+        final int[] levels = { -1, -1, -1 };
+        // Indices of the picked entries, in pick order.
+        final int[][] entries = new int[3][0];
+        final int[] counts = new int[3];
+        long[] mask = new long[0];
+
+        void ensureCapacity(EnchantTable table) {
+            if (mask.length < table.words) {
+                mask = new long[table.words];
+            }
+            for (int i = 0; i < 3; ++i) {
+                if (entries[i].length < table.maxEntries) {
+                    entries[i] = new int[table.maxEntries];
+                }
+            }
+        }
+    }
+
+    final boolean isBook;
+    final int enchantability;
+    // All indexed by [modified level][entry]
+    final int[][] ids;
+    final int[][] enchantLevels;
+    final int[][] weights;
+    final int[][] prefixWeights;
+    // Indexed by [modified level][entry][word]
+    final long[][][] incompatible;
+    // The most entries at any level, and the number of mask words that takes.
+    final int maxEntries;
+    final int words;
+
+    public EnchantTable(ItemStack item) {
+        if (item.getItem() == Items.ENCHANTED_BOOK) {
+            item = new ItemStack(Items.BOOK);
+        }
+        isBook = item.getItem() == Items.BOOK;
+        enchantability = item.getItem().getItemEnchantability(item);
+        // The most the table can add to a slot level, with the random bonus and the 15% fudge.
+        int maxLevel = Math.round((MAX_SLOT_LEVEL + 1 + 2 * Math.max(enchantability / 4, 0)) * 1.15f) + 1;
+        ids = new int[maxLevel + 1][];
+        enchantLevels = new int[maxLevel + 1][];
+        weights = new int[maxLevel + 1][];
+        prefixWeights = new int[maxLevel + 1][];
+        incompatible = new long[maxLevel + 1][][];
+        int most = 0;
+        for (int level = 0; level <= maxLevel; ++level) {
+            List<EnchantmentData> list = enchantability <= 0 ? Collections.<EnchantmentData>emptyList()
+                    : EnchantmentHelper.getEnchantmentDatas(level, item, /*allowTreasure=*/false);
+            most = Math.max(most, list.size());
+            int size = list.size();
+            ids[level] = new int[size];
+            enchantLevels[level] = new int[size];
+            weights[level] = new int[size];
+            prefixWeights[level] = new int[size];
+            int sum = 0;
+            for (int i = 0; i < size; ++i) {
+                EnchantmentData data = list.get(i);
+                ids[level][i] = Observation.getEnchantmentID(data.enchantment);
+                enchantLevels[level][i] = data.enchantmentLevel;
+                weights[level][i] = data.enchantment.getRarity().getWeight();
+                sum += weights[level][i];
+                prefixWeights[level][i] = sum;
+            }
+            long[][] masks = new long[size][(size + 63) >>> 6];
+            for (int i = 0; i < size; ++i) {
+                for (int j = 0; j < size; ++j) {
+                    if (!list.get(i).enchantment.isCompatibleWith(list.get(j).enchantment)) {
+                        masks[i][j >>> 6] |= 1L << j;
+                    }
+                }
+            }
+            incompatible[level] = masks;
+        }
+        maxEntries = most;
+        words = (most + 63) >>> 6;
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.enchantment.Enchantment;
+import net.minecraft.init.Items;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.registry.IRegistry;
+import net.minecraftforge.registries.ForgeRegistries;
+
+/**
+ * Process-wide cache of EnchantTables, shared by every worker and scan.
+ *
+ * A table only depends on the item's enchantability, whether it's a book, and which enchantments
+ * EnchantmentHelper.getEnchantmentDatas() considers for it. Lots of items agree on all three (every
+ * diamond chestplate, say, no matter its damage or name), so that's what the cache is keyed by. The
+ * key is cheap to work out, unlike the table. The cache is bounded, and throws out the least
+ * recently used table when it's full.
+ */
+public class EnchantTableCache {
+    /** The equivalence class of items that share a table. */
+    static class Key {
+        final boolean isBook;
+        final int enchantability;
+        // Registry IDs of the enchantments that can be rolled for the item.
+        final BitSet applicable = new BitSet();
+
+        Key(ItemStack item) {
+            if (item.getItem() == Items.ENCHANTED_BOOK) {
+                item = new ItemStack(Items.BOOK);
+            }
+            isBook = item.getItem() == Items.BOOK;
+            enchantability = item.getItem().getItemEnchantability(item);
+            // The same test as getEnchantmentDatas(), without treasure.
+            for (Enchantment enchantment : IRegistry.field_212628_q) {
+                if (!enchantment.isTreasureEnchantment() && (enchantment.canApplyAtEnchantingTable(item)
+                        || (isBook && enchantment.isAllowedOnBooks()))) {
+                    applicable.set(Observation.getEnchantmentID(enchantment));
+                }
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (isBook ? 1231 : 1237);
+            result = prime * result + enchantability;
+            result = prime * result + applicable.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return isBook == other.isBook && enchantability == other.enchantability
+                    && applicable.equals(other.applicable);
+        }
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    // Comfortably more than the number of distinct classes among the vanilla items.
+    static final int MAX_TABLES = 128;
+
+    @GuardedBy("cache")
+    private static final LinkedHashMap<Key, EnchantTable> cache =
+            new LinkedHashMap<Key, EnchantTable>(16, 0.75f, /*accessOrder=*/true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, EnchantTable> eldest) {
+                    return size() > MAX_TABLES;
+                }
+            };
+
+    private EnchantTableCache() {}
+
+    /** Returns the (possibly shared) table for the item, building it if needed. */
+    public static EnchantTable get(ItemStack item) {
+        Key key = new Key(item);
+        synchronized (cache) {
+            EnchantTable table = cache.get(key);
+            if (table != null) {
+                return table;
+            }
+        }
+        // Built outside the lock, so a slow build doesn't hold up everyone else. Two threads might
+        // both build the same table, but they'll be identical, so it doesn't matter which one wins.
+        EnchantTable table = new EnchantTable(item);
+        synchronized (cache) {
+            EnchantTable existing = cache.putIfAbsent(key, table);
+            return existing != null ? existing : table;
+        }
+    }
+
+    /**
+     * Builds the tables for every enchantable item, on a low-priority background thread, so that
+     * the first scan doesn't have to. If there are more classes than fit, the most recent ones stay.
+     */
+    public static void warm() {
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            int items = 0;
+            for (Item item : ForgeRegistries.ITEMS) {
+                ItemStack stack = new ItemStack(item);
+                if (item == Items.BOOK || item.getItemEnchantability(stack) > 0) {
+                    get(stack);
+                    ++items;
+                }
+            }
+            int size;
+            synchronized (cache) {
+                size = cache.size();
+            }
+            LOGGER.debug("Warmed enchant tables for {} items in {} classes in {}ms", items, size,
+                    (System.nanoTime() - start) / 1000000);
+        }, "EnchantTableCache");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Visible for testing
+    static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
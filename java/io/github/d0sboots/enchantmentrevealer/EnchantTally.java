@@ -0,0 +1,121 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.minecraft.enchantment.Enchantment;
+import net.minecraft.enchantment.EnchantmentData;
+
+/**
+ * Counts how many candidates give each (enchantment, level) in each slot.
+ *
+ * The counts live in plain int arrays indexed by slot, enchantment id and level, so tallying a hit
+ * is a few array lookups and an increment. The scans tally millions of hits on weak observations,
+ * and the old list-of-EnchantCount approach spent most of that time searching lists and making
+ * objects. The arrays grow to fit whatever ids and levels show up, so modded enchantments work too.
+ */
+public class EnchantTally {
+    // Indexed by [slot][enchantment id][level]. Entries for ids that never showed up are null.
+    private final int[][][] counts = new int[3][0][];
+
+    public void add(int slot, int id, int level, int count) {
+        int[][] byId = counts[slot];
+        if (id >= byId.length) {
+            byId = counts[slot] = Arrays.copyOf(byId, id + 1);
+        }
+        int[] byLevel = byId[id];
+        if (byLevel == null) {
+            byLevel = byId[id] = new int[level + 1];
+        } else if (level >= byLevel.length) {
+            byLevel = byId[id] = Arrays.copyOf(byLevel, level + 1);
+        }
+        byLevel[level] += count;
+    }
+
+    /** Tallies one seed's enchants. Slots with a null list are skipped. */
+    public void add(List<EnchantmentData>[] enchantData) {
+        for (int slot = 0; slot < 3; ++slot) {
+            List<EnchantmentData> list = enchantData[slot];
+            if (list == null) {
+                continue;
+            }
+            for (int i = 0; i < list.size(); ++i) {
+                EnchantmentData data = list.get(i);
+                add(slot, Observation.getEnchantmentID(data.enchantment), data.enchantmentLevel, 1);
+            }
+        }
+    }
+
+    /** Tallies the enchants that SeedSolver.testEnchantFast() rolled for one seed. */
+    public void add(EnchantTable table, EnchantTable.Picks picks) {
+        for (int slot = 0; slot < 3; ++slot) {
+            int level = picks.levels[slot];
+            if (level < 0) {
+                continue;
+            }
+            int[] ids = table.ids[level];
+            int[] enchantLevels = table.enchantLevels[level];
+            int[] entries = picks.entries[slot];
+            for (int i = 0; i < picks.counts[slot]; ++i) {
+                add(slot, ids[entries[i]], enchantLevels[entries[i]], 1);
+            }
+        }
+    }
+
+    public void addAll(EnchantTally other) {
+        for (int slot = 0; slot < 3; ++slot) {
+            int[][] byId = other.counts[slot];
+            for (int id = 0; id < byId.length; ++id) {
+                int[] byLevel = byId[id];
+                if (byLevel == null) {
+                    continue;
+                }
+                for (int level = 0; level < byLevel.length; ++level) {
+                    if (byLevel[level] != 0) {
+                        add(slot, id, level, byLevel[level]);
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (int slot = 0; slot < 3; ++slot) {
+            counts[slot] = new int[0][];
+        }
+    }
+
+    /** The non-zero counts for a slot, in no particular order. */
+    public ArrayList<EnchantCount> toList(int slot) {
+        ArrayList<EnchantCount> result = new ArrayList<EnchantCount>();
+        int[][] byId = counts[slot];
+        for (int id = 0; id < byId.length; ++id) {
+            int[] byLevel = byId[id];
+            if (byLevel == null) {
+                continue;
+            }
+            for (int level = 0; level < byLevel.length; ++level) {
+                if (byLevel[level] != 0) {
+                    result.add(new EnchantCount(byLevel[level],
+                            new EnchantmentData(Enchantment.getEnchantmentByID(id), level)));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -49,6 +49,10 @@ public class EnchantmentRevealer {
         public final ConfigValue<String> useSeedHint;
         public final BooleanValue enableCommand;
         public final ConfigValue<Integer> syncTicksMax;
+        public final ConfigValue<Integer> scanThreads;
+        public final ConfigValue<Integer> spillThreshold;
+        public final BooleanValue recordTraces;
+        public final ConfigValue<Integer> sessionCacheMegabytes;
 
         Config(ForgeConfigSpec.Builder builder) {
             builder.comment("Client only settings").push("client");
@@ -69,6 +73,27 @@ public class EnchantmentRevealer {
                     "seconds, i.e. over 40) can introduce other issues in certain edge cases if you shuffle ",
                     "items fast enough.")
                     .define("syncTicksMax", 15);
+            scanThreads = builder.comment(
+                    "The number of threads to use when searching for the enchantment seed. The default of 0 ",
+                    "means one thread per CPU core. The threads run at low priority, but you can lower this if ",
+                    "the game stutters while a search is running.")
+                    .define("scanThreads", 0);
+            spillThreshold = builder.comment(
+                    "When a search leaves more than this many possible seeds, they are moved out of memory ",
+                    "and into a temporary file in the enchantment_revealer folder, which is deleted ",
+                    "afterwards. Set to 0 to always keep them in memory.")
+                    .define("spillThreshold", 10000000);
+            recordTraces = builder.comment(
+                    "If true, every observation is recorded to a trace file in the enchantment_revealer/traces ",
+                    "folder, one per session. These can be replayed outside the game, to reproduce problems or ",
+                    "measure how long the search takes.")
+                    .define("recordTraces", false);
+            sessionCacheMegabytes = builder.comment(
+                    "How much memory, in megabytes, to spend keeping the possible seeds for servers you've ",
+                    "left, so that coming back doesn't start the search over. The least recently visited ",
+                    "servers are dropped first. Seeds that were moved into a file (see spillThreshold) ",
+                    "don't count. Set to 0 to only keep the current server's.")
+                    .define("sessionCacheMegabytes", 256);
             builder.pop();
 
             builder.comment("Server-side configuration settings").push("server");
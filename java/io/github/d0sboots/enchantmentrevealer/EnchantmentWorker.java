@@ -14,14 +14,13 @@
 
 package io.github.d0sboots.enchantmentrevealer;
 
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
-import java.util.List;
-import java.util.Map;
-import java.util.Random;
+import java.util.function.BooleanSupplier;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -29,43 +28,53 @@ import javax.annotation.concurrent.GuardedBy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
-
 import net.minecraft.client.gui.GuiNewChat;
 import net.minecraft.client.resources.I18n;
 import net.minecraft.enchantment.Enchantment;
 import net.minecraft.enchantment.EnchantmentData;
-import net.minecraft.enchantment.EnchantmentHelper;
-import net.minecraft.init.Items;
 import net.minecraft.item.ItemStack;
-import net.minecraft.util.WeightedRandom;
-import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.text.Style;
 import net.minecraft.util.text.TextComponentString;
 import net.minecraft.util.text.TextComponentTranslation;
 import net.minecraft.util.text.TextFormatting;
+import net.minecraftforge.fml.loading.FMLPaths;
 
 /**
- * This does all the heavy lifting for figuring out enchantments.
+ * Connects the GUI to the SeedSolver, which does all the heavy lifting for figuring out
+ * enchantments.
  *
- * It can either run on its own thread, or the caller's thread (if the amount of work is small
- * enough).
+ * Observations are queued up and solved on a thread of its own, and the results are turned into
+ * States for the GUI to show.
  */
 public class EnchantmentWorker implements Runnable {
     /**
-     * Data class that holds a UI state to be communicated to the GUI.
+     * Data class that holds a UI state to be communicated to the GUI. It's all plain numbers, so that
+     * nothing is translated on the worker thread: The GUI turns it into text when it's shown.
      */
     public static class State {
-        /** Message to be shown in the place where "Enchanting" normally shows up. */
-        public final String statusMessage;
+        public enum Status {
+            DEFAULT, CALCULATING, SEED, POSSIBLES, ERROR,
+            /** Partway through a full scan: The enchants and counts are for the seeds found so far. */
+            PARTIAL,
+            /** Before a long scan: The enchants and counts are for the matches in a random sample. */
+            ESTIMATE
+        }
+
+        /** What to show in the place where "Enchanting" normally shows up. */
+        public final Status status;
+        /**
+         * The seed for SEED, the count for POSSIBLES and PARTIAL, and the estimated count for
+         * ESTIMATE. For CALCULATING, PARTIAL and ESTIMATE, the percentage is read from
+         * getScanProgress() instead, so that it doesn't take a new State to update it.
+         */
+        public final int statusArg;
         /**
          * First dimension is slot (3 entries), second dimension is the number of unique enchants for that
-         * slot. The string values are the pre-translated names, with power level. These are sorted so that
-         * the "observed" enchantment (the one that would be shown in the vanilla UI) is always first, and
-         * then in order of increasing rarity.
+         * slot. The values are packed enchantments with their power level, see EnchantNames. These are
+         * sorted so that the "observed" enchantment (the one that would be shown in the vanilla UI) is
+         * always first, and then in order of increasing rarity.
          */
-        public final String[][] enchants;
+        public final int[][] enchants;
         /**
          * Sliced the same direction as "enchants", this has the number of times that enchantment is a valid
          * possibility. Because of the sorting order, the first element (per slot) also serves as the
@@ -79,28 +88,84 @@ public class EnchantmentWorker implements Runnable {
         @Nullable
         public final Observation observation;
 
-        public State(String statusMessage, String[][] enchants, int[][] counts,
+        // Formatted the first time it's needed.
+        @Nullable
+        private String statusMessage;
+
+        public State(Status status, int statusArg, int[][] enchants, int[][] counts,
                 @Nullable Observation observation) {
-            this.statusMessage = statusMessage;
+            this.status = status;
+            this.statusArg = statusArg;
             this.enchants = enchants;
             this.counts = counts;
             this.observation = observation;
         }
 
-        public boolean isError() { return statusMessage.startsWith(TextFormatting.RED.toString()); }
+        /**
+         * The message for the status, translated. While a scan is running, this leaves out how far
+         * along it is, which is what getProgressMessage() is for. Only call this from the main (UI)
+         * thread.
+         */
+        public String getStatusMessage() {
+            if (statusMessage == null) {
+                switch (status) {
+                case CALCULATING:
+                case PARTIAL:
+                case ESTIMATE:
+                    statusMessage = I18n.format("enchantmentrevealer.calculating");
+                    break;
+                case SEED:
+                    statusMessage = I18n.format("enchantmentrevealer.status.seed", statusArg);
+                    break;
+                case POSSIBLES:
+                    statusMessage = I18n.format("enchantmentrevealer.status.possibles", statusArg);
+                    break;
+                case ERROR:
+                    statusMessage = TextFormatting.RED + I18n.format("enchantmentrevealer.error.mainmessage");
+                    break;
+                default:
+                    statusMessage = DEFAULT_STATUS;
+                }
+            }
+            return statusMessage;
+        }
+
+        /** The message for a running scan, given how far along it is. */
+        public String getProgressMessage(int percent) {
+            if (status == Status.PARTIAL) {
+                return I18n.format("enchantmentrevealer.status.partial", statusArg, percent);
+            }
+            if (status == Status.ESTIMATE) {
+                return I18n.format("enchantmentrevealer.status.estimate", statusArg, percent);
+            }
+            return I18n.format("enchantmentrevealer.calculating.percent", percent);
+        }
+
+        public boolean isInProgress() {
+            return status == Status.CALCULATING || status == Status.PARTIAL || status == Status.ESTIMATE;
+        }
+
+        public boolean isPartial() { return status == Status.PARTIAL; }
+
+        public boolean isEstimate() { return status == Status.ESTIMATE; }
+
+        public boolean isError() { return status == Status.ERROR; }
     }
 
     private static final Logger LOGGER = LogManager.getLogger();
     public static final String DEFAULT_STATUS = I18n.format("enchantmentrevealer.version",
             EnchantmentRevealer.VERSION);
-    // Default size of the psuedo-ArrayList "candidates".
-    private static final int INITIAL_SIZE = 128;
-    // The number of seeds to work in a batch, before reporting progress to the UI
-    private static final int BATCH_SIZE = 1024;
-    // No strings, my friend, no strings!
-    public static final String[][] NO_STRINGS = { new String[0], new String[0], new String[0] };
+    // How often a full scan saves its progress, at most.
+    private static final long CHECKPOINT_INTERVAL_NANOS = 10_000_000_000L;
+    // How often a full scan shows what it has found so far, at most.
+    private static final long PARTIAL_INTERVAL_NANOS = 1_000_000_000L;
+    // Shared by every worker, so that a closed worker finishing its checkpoint, or the sessions in
+    // the SessionCache, don't each bring a pool with a thread per core.
+    private static final ScanEngine SCAN_ENGINE = new ScanEngine(() -> EnchantmentRevealer.CONFIG.scanThreads.get());
+    // No strings, my friend, no strings! (The enchants for a State that doesn't have any.)
+    public static final int[][] NO_ENCHANTS = { new int[0], new int[0], new int[0] };
     private static final int[][] NO_INTS = { new int[0], new int[0], new int[0] };
-    private static final State DEFAULT_STATE = new State(DEFAULT_STATUS, NO_STRINGS, NO_INTS, null);
+    private static final State DEFAULT_STATE = new State(State.Status.DEFAULT, 0, NO_ENCHANTS, NO_INTS, null);
 
     public volatile State state = DEFAULT_STATE;
 
@@ -110,6 +175,18 @@ public class EnchantmentWorker implements Runnable {
     Thread thread = null; // Visible for testing
     @GuardedBy("this")
     private Observation pendingEnchant;
+    // Bumped whenever something makes the current scan pointless: A reset (which is also what
+    // disabling and enchanting send). Scans check it between chunks, and give up if it changed.
+    private volatile int generation;
+    // Set once the worker is no longer wanted, so that the scan in progress saves a checkpoint
+    // instead of being thrown away.
+    private volatile boolean closed;
+    @GuardedBy("this")
+    private boolean resumePending;
+    // The worker to wait for before loading the snapshot, see resume().
+    @GuardedBy("this")
+    @Nullable
+    private EnchantmentWorker predecessor;
 
     // This is accessed from the main (UI) thread only.
     private boolean disabled;
@@ -117,28 +194,73 @@ public class EnchantmentWorker implements Runnable {
     // The following are only accessed from the worker thread, or when the worker thread is
     // guaranteed to be stopped.
 
-    // A psuedo-ArrayList (we grow and shrink it ourselves) that tracks the possible seed
-    // candidates. This is not an actual ArrayList because unboxing. (Even though it probably
-    // doesn't matter.) Visible for testing.
-    int[] candidates = new int[INITIAL_SIZE];
-    int candidatesLength = 0;
-
-    @SuppressWarnings("unchecked")
-    final ArrayList<EnchantCount>[] enchantCounts = new ArrayList[3];
-    {
-        for (int i = 0; i < 3; ++i)
-            enchantCounts[i] = new ArrayList<EnchantCount>();
-    }
-    private final Random rand = new Random(0);
-    @SuppressWarnings("unchecked")
-    private final List<EnchantmentData>[] tempEnchantmentData = new ArrayList[3];
+    // Visible for testing and benchmarks
+    final SeedSolver solver = new SeedSolver(SCAN_ENGINE, new SeedSolver.Listener() {
+        @Override
+        public void onChunk(Observation observation) { EnchantmentWorker.this.onChunk(observation); }
+
+        @Override
+        public void onEstimate(Observation observation, SeedSolver.Estimate estimate) {
+            state = generateEstimateState(observation, estimate);
+        }
+    });
+    // The solver's, which are the possible seed candidates, in increasing (unsigned) order, and
+    // the tallies of their enchants. Visible for testing.
+    final CandidateSet candidates = solver.getCandidates();
+    final EnchantTally tallies = solver.getTallies();
+    private final SolverMetrics metrics = SolverMetrics.INSTANCE;
     private final ArrayList<Observation> observations = new ArrayList<Observation>();
-    // Are we re-doing the calculations assuming bad seed data?
-    private boolean didFallback = false;
     // Used to report errors (only)
     private final GuiNewChat guiChat;
+    @Nullable
+    private final SnapshotStore snapshots;
+    // Where every observation sent to us is recorded, if anywhere.
+    @GuardedBy("this")
+    @Nullable
+    private ObservationTrace trace;
+    // Where to pick the restored full scan back up, if there is one.
+    @Nullable
+    private SeedSolver.Checkpoint resumeFrom;
+    private long nextCheckpointNanos;
+    private long nextPartialNanos;
+
+    public EnchantmentWorker(GuiNewChat chatGUI) { this(chatGUI, null, null); }
+
+    public EnchantmentWorker(GuiNewChat chatGUI, @Nullable SnapshotStore snapshots,
+            @Nullable ObservationTrace trace) {
+        guiChat = chatGUI;
+        this.snapshots = snapshots;
+        this.trace = trace;
+    }
+
+    /**
+     * Switches to recording observations in trace instead, closing the old one. A worker that's
+     * parked doesn't need its trace held open, and gets a new one (if any) when it's taken back.
+     */
+    public synchronized void setTrace(@Nullable ObservationTrace trace) {
+        if (this.trace != null && this.trace != trace) {
+            this.trace.close();
+        }
+        this.trace = trace;
+    }
+
+    /** How far along the scan in progress is, for showing with a CALCULATING state. */
+    public ScanProgress getScanProgress() { return solver.getScanProgress(); }
+
+    @Nullable
+    public String getSnapshotKey() { return snapshots == null ? null : snapshots.getKey(); }
 
-    public EnchantmentWorker(GuiNewChat chatGUI) { guiChat = chatGUI; }
+    /**
+     * True when there's nothing queued and no thread running, so the candidates stay as they are
+     * until the next observation.
+     */
+    public synchronized boolean isIdle() { return thread == null && !resumePending; }
+
+    /**
+     * The bytes of heap held by the candidates, which leaves out any that were spilled to a file.
+     * Only meaningful while isIdle().
+     */
+    public long memoryBytes() { return candidates.heapBytes(); }
 
     public boolean isDisabled() { return disabled; }
 
@@ -176,384 +298,174 @@ public class EnchantmentWorker implements Runnable {
 
     private void mainLoop() {
         while (true) {
+            final int scanGeneration;
+            boolean restore;
             synchronized (this) {
-                if (checkDone()) {
+                restore = resumePending;
+                resumePending = false;
+                if (!restore && checkDone()) {
                     return;
                 }
+                scanGeneration = generation;
             }
+            // Resuming a scan skips the queue, so that the generation already covers it.
+            if (restore && !restoreSnapshot()) {
+                continue;
+            }
+            final BooleanSupplier cancelled = () -> generation != scanGeneration;
+            final SeedSolver.Checkpoint checkpoint = resumeFrom;
+            resumeFrom = null;
 
             Observation observation = observations.get(observations.size() - 1);
             LOGGER.debug("Working observation {}", observation);
             if (!observation.hasEnchants()) {
                 // Keep the message around, but update the observation
-                state = new State(state.statusMessage, NO_STRINGS, NO_INTS, observation);
+                state = new State(state.status, state.statusArg, NO_ENCHANTS, NO_INTS, observation);
                 continue;
             }
-            if (!observation.isUnenchantable()
-                    && (observation.item == null || observation.item.getItemEnchantability() == 0)) {
+            candidates.setSpillPolicy(() -> FMLPaths.GAMEDIR.get().resolve(EnchantmentRevealer.MODID),
+                    EnchantmentRevealer.CONFIG.spillThreshold.get());
+            nextCheckpointNanos = System.nanoTime() + CHECKPOINT_INTERVAL_NANOS;
+            nextPartialNanos = System.nanoTime() + PARTIAL_INTERVAL_NANOS;
+            SeedSolver.HintMode hintMode = SeedSolver.HintMode.parse(EnchantmentRevealer.CONFIG.useSeedHint.get());
+            state = new State(State.Status.CALCULATING, 0, NO_ENCHANTS, NO_INTS, observation);
+            switch (solver.solve(observations, checkpoint, hintMode, cancelled)) {
+            case SOLVED:
+                break;
+            case CANCELLED:
+                abandonScan(observation);
+                continue;
+            case UNENCHANTABLE:
                 dumpError("unenchantable");
                 // Don't re-process anything.
                 return;
-            }
-            for (int i = 0; i < 3; ++i) {
-                enchantCounts[i].clear();
-            }
-            Observation prevObservation = null;
-            for (int i = observations.size() - 2; i >= 0; --i) {
-                Observation o = observations.get(i);
-                if (o.hasEnchants()) {
-                    prevObservation = o;
-                    break;
-                }
-            }
-            if (prevObservation != null && prevObservation.truncatedSeed != observation.truncatedSeed) {
+            case SEED_MISMATCH:
                 dumpError("seedmismatch");
                 // Put the observation back so it is processed next time
                 observations.add(observation);
                 return;
+            case EXHAUSTED:
+                dumpError("exhausted");
+                // Put the observation back so it is processed next time
+                observations.add(observation);
+                return;
             }
-            String useSeedHint = EnchantmentRevealer.CONFIG.useSeedHint.get();
-            if (candidatesLength == 0) {
-                if (didFallback || useSeedHint.equalsIgnoreCase("never")) {
-                    doInitialFull(observation);
-                } else {
-                    doInitial(observation);
-                }
-            } else {
-                refine(observation);
-            }
-
-            if (candidatesLength == 0) {
-                if (didFallback || useSeedHint.equalsIgnoreCase("always")) {
-                    dumpError("exhausted");
-                    // Put the observation back so it is processed next time
-                    observations.add(observation);
-                    return;
-                }
-
-                LOGGER.info("Exhausted all possibilities, trying again while ignoring xpSeed");
-                didFallback = true;
-                // Put all the observations back on the queue, so we re-process them.
-                synchronized (this) {
-                    for (int i = observations.size() - 1; i >= 0; --i) {
-                        queue.addFirst(observations.get(i));
-                    }
-                }
-                observations.clear();
-                continue; // Immediately start re-processing
-            }
-            state = generateRestingState(observation);
+            long start = metrics.beginPhase(SolverMetrics.Phase.GENERATE_RESTING_STATE);
+            state = generateState(observation, false);
+            metrics.endPhase(SolverMetrics.Phase.GENERATE_RESTING_STATE, start);
+            saveSnapshot(null);
         }
     }
 
-    public synchronized void addObservation(Observation observation) {
-        queue.add(observation);
-
-        if (thread != null) {
-            // Worker will handle it.
-            return;
+    private void abandonScan(Observation observation) {
+        if (closed && solver.getProgress() != null) {
+            // Nobody is waiting on this, but the player might come back to it.
+            saveSnapshot(solver.getProgress());
         }
-        thread = new Thread(this, "EnchantmentWorker");
-        thread.setDaemon(true);
-        thread.setPriority(Thread.MIN_PRIORITY);
-        thread.start();
-    }
-
-    private void setPartialProgress(Observation observation, long percent) {
-        state = new State(I18n.format("enchantmentrevealer.calculating.percent", percent),
-                NO_STRINGS, NO_INTS, observation);
-    }
-
-    private void doInitial(Observation observation) {
-        int initial = observation.truncatedSeed & 0xFFF0;
-        int i = initial;
-        do {
-            setPartialProgress(observation, Math.round((i & 0xFFFFFFFFL) * 0x64P-32)); // 100/2^32
-            int localLimit = i + (BATCH_SIZE << 12);
-
-            for (; i != localLimit; i += (1 << 16)) {
-                for (int j = 0; j < 16; ++j) {
-                    int merged = i | j;
-                    if (testLevels(rand, merged, observation)
-                            && testEnchants(rand, merged, observation, tempEnchantmentData)) {
-                        addAndTallyEnchants(merged, tempEnchantmentData);
-                    }
-                }
-            }
-        } while (i != initial);
+        // Whatever cancelled us is waiting in the queue, and will reset everything. The partial
+        // candidates are meaningless, so don't let them be seen by that, and give the memory back
+        // now.
+        LOGGER.debug("Abandoned observation {}", observation);
+        solver.clear();
     }
 
-    /** Scan the entire space */
-    private void doInitialFull(final Observation observation) {
-        final int THREAD_POOL_SIZE = 4;
-        Thread[] threads = new Thread[THREAD_POOL_SIZE];
-        final int batch[] = new int[1]; // Loop counter passed as one-element array
-
-        ItemStack item = observation.item;
-        final boolean isBook = item.getItem() == Items.BOOK || item.getItem() == Items.ENCHANTED_BOOK;
-        final List<List<EnchantmentData>> cachedEnchantmentList = buildEnchantListCache(item);
-        final Enchantment[] targets = new Enchantment[3];
-        for (int i = 0; i < 3; ++i) {
-            targets[i] = Enchantment.getEnchantmentByID(observation.enchants[i]);
-        }
-        final int enchantability = item.getItem().getItemEnchantability(item);
-
-        for (int j = 0; j < THREAD_POOL_SIZE; ++j) {
-            threads[j] = new Thread("EnchantmentWorker-doInitialFull-" + j) {
-                @Override
-                public void run() {
-                    class Observed {
-                        public int seed;
-                        @SuppressWarnings("unchecked")
-                        public List<EnchantmentData>[] tempData = new List[3];
-                        {
-                            for (int i = 0; i < 3; ++i) {
-                                tempData[i] = new ArrayList<EnchantmentData>();
-                            }
-                        }
-                    }
-
-                    // We never shrink seen, so that it holds on to all the Observed instances.
-                    // So we track seenLength separately, and length() becomes capacity.
-                    // This is so that we can re-use all the objects involved without re-allocating
-                    // or re-initializing them.
-                    List<Observed> seen = new ArrayList<Observed>();
-                    Random rng = new Random(0);
-                    seen.add(new Observed());
-                    int seenLength = 0;
-                    do {
-                        int i;
-                        int localLimit;
-                        synchronized (batch) {
-                            // We've been saving work thread-locally, now deal with it.
-                            for (int j = 0; j < seenLength; ++j) {
-                                Observed o = seen.get(j);
-                                addAndTallyEnchants(o.seed, o.tempData);
-                            }
-                            seenLength = 0;
-                            i = batch[0];
-                            if (i == 1) { // Sentinel value
-                                return;
-                            }
-                            // Higher batch size, because of the larger space.
-                            localLimit = i + (BATCH_SIZE << 4);
-                            batch[0] = localLimit;
-                            if (localLimit == 0) {
-                                batch[0] = 1;
-                            }
-                            setPartialProgress(observation, Math.round((i & 0xFFFFFFFFL) * 0x64P-32)); // 100/2^32
-                        }
-
-                        // The inner loop: Everything else can be slow, but this must be fast.
-                        for (; i != localLimit; i++) {
-                            if (testLevelsFast(rng, i, observation)) {
-                                Observed observed = seen.get(seenLength);
-                                List<EnchantmentData>[] tempData = observed.tempData;
-                                if (testEnchantFast(rng, i, observation, isBook, cachedEnchantmentList,
-                                        tempData, targets[2], enchantability, 2)
-                                        && testEnchantFast(rng, i, observation, isBook, cachedEnchantmentList,
-                                                tempData, targets[1], enchantability, 1)
-                                        && testEnchantFast(rng, i, observation, isBook, cachedEnchantmentList,
-                                                tempData, targets[0], enchantability, 0)) {
-                                    observed.seed = i;
-                                    seenLength++;
-                                    if (seenLength >= seen.size()) {
-                                        seen.add(new Observed());
-                                    }
-                                }
-                            }
-                        }
-                    } while (true);
-                }
-            };
-            threads[j].setDaemon(true);
-            threads[j].setPriority(Thread.MIN_PRIORITY);
-            threads[j].start();
-        }
-        for (int j = 0; j < THREAD_POOL_SIZE; ++j) {
-            try {
-                threads[j].join();
-            } catch (InterruptedException ex) {
-                j--;
-            }
+    public synchronized void addObservation(Observation observation) {
+        if (trace != null) {
+            trace.record(observation);
         }
-    }
-
-    private void refine(Observation observation) {
-        int limit = candidatesLength;
-        candidatesLength = 0;
-        int i = 0;
-        final double dRatio = 100.0 / limit;
-        while (i < limit) {
-            setPartialProgress(observation, Math.round(i * dRatio));
-            int localLimit = i + BATCH_SIZE;
-            if (localLimit > limit) {
-                localLimit = limit;
-            }
-            for (; i != localLimit; i++) {
-                if (testEnchants(rand, candidates[i], observation, tempEnchantmentData)) {
-                    addAndTallyEnchants(candidates[i], tempEnchantmentData);
-                }
-            }
+        queue.add(observation);
+        metrics.recordQueueDepth(queue.size());
+        if (observation.power == Observation.RESET_POWER) {
+            generation++;
         }
+        startThread();
     }
 
-    static boolean testLevels(Random rand, int seed, Observation observation) {
-        rand.setSeed(seed);
-
-        for (int i = 0; i < 3; ++i) {
-            int level = EnchantmentHelper.calcItemStackEnchantability(rand, i, observation.power,
-                    observation.item);
-            if (level < i + 1) {
-                level = 0;
-            }
-            if (level != observation.levels[i]) {
-                return false;
-            }
-        }
-        return true;
-    }
+    /**
+     * Picks up where the last worker for the same snapshot store left off, including in the middle
+     * of a full scan. The loading happens on the worker thread.
+     */
+    public void resume() { resume(null); }
 
-    // This should always return the same result as testLevels(). We keep both around, because
-    // testLevels() is less likely to break, and isn't that much slower. It's suitable for use
-    // in everything except doInitialFull().
-    static boolean testLevelsFast(Random rand, int seed, Observation observation) {
-        int[] levels = observation.levels;
-        int power = observation.power;
-        if (power > 15) {
-            power = 15;
-        }
-        int p1 = 1 + (power >> 1);
-        int p2 = power + 1;
-        rand.setSeed(seed);
-        int j = rand.nextInt(8) + p1 + rand.nextInt(p2);
-        int level = j / 3;
-        if (level < 1) {
-            level = 1;
-        }
-        if (level != levels[0]) {
-            return false;
-        }
-        j = rand.nextInt(8) + p1 + rand.nextInt(p2);
-        level = j * 2 / 3 + 1;
-        if (level < 2) {
-            level = 0;
-        }
-        if (level != levels[1]) {
-            return false;
-        }
-        j = rand.nextInt(8) + p1 + rand.nextInt(p2);
-        level = power * 2;
-        if (level < j) {
-            level = j;
-        }
-        if (level < 3) {
-            level = 0;
+    /**
+     * Like resume(), but first waits for previous, the last worker for the same snapshot store, to
+     * finish. If it was closed in the middle of a scan, it's still writing its checkpoint, which
+     * would otherwise land after (and on top of) whatever this one does with the snapshot. The
+     * waiting happens on the worker thread too.
+     */
+    public synchronized void resume(@Nullable EnchantmentWorker previous) {
+        if (snapshots == null) {
+            return;
         }
-        return level == levels[2];
+        predecessor = previous;
+        resumePending = true;
+        startThread();
     }
 
-    static boolean testEnchants(Random rand, int seed, Observation observation,
-            List<EnchantmentData>[] tempEnchantmentData) {
-        for (int i = 0; i < 3; ++i) {
-            int level = observation.levels[i];
-
-            if (level == 0) {
-                tempEnchantmentData[i] = null;
-                continue;
-            }
-            List<EnchantmentData> list = buildEnchantmentList(rand, seed, observation, i);
-            tempEnchantmentData[i] = list;
-            if (list.isEmpty()) {
-                if (observation.enchants[i] == -1) {
-                    // Nothing at the observed slot, so it matches.
-                    continue;
-                }
-                return false;
-            }
-            EnchantmentData data = list.get(rand.nextInt(list.size()));
-            if (Enchantment.getEnchantmentByID(observation.enchants[i]) != data.enchantment ||
-                    observation.enchantLevels[i] != data.enchantmentLevel) {
-                return false;
-            }
+    /**
+     * Stops the worker for good. A full scan in progress is checkpointed, so a later worker can
+     * resume() it. That happens on the worker thread, after this returns, so the later worker has
+     * to be handed this one to wait for.
+     */
+    public synchronized void close() {
+        LOGGER.debug("Closing worker {}", this);
+        closed = true;
+        if (trace != null) {
+            trace.close();
+        }
+        queue.clear();
+        metrics.recordQueueDepth(0);
+        resumePending = false;
+        generation++;
+        if (thread == null) {
+            // Nothing is using the candidates, and the snapshot already has them, so give the
+            // memory (and any spill file) back now instead of whenever we're collected.
+            solver.clear();
         }
-        return true;
     }
 
-    static boolean testEnchantFast(Random rand, int seed, Observation observation, boolean isBook,
-            List<List<EnchantmentData>> cachedEnchantList, List<EnchantmentData>[] tempEnchantmentData,
-            Enchantment target, int enchantability, int index) {
-        int level = observation.levels[index];
-        if (level == 0) {
-            tempEnchantmentData[index] = null;
-            return true; // Always matches
-        }
-        if (enchantability <= 0) {
-            return observation.enchants[index] == -1;
-        }
-        rand.setSeed(seed + index);
-
-        level = level + 1 + rand.nextInt(enchantability / 4 + 1) + rand.nextInt(enchantability / 4 + 1);
-        float f = (rand.nextFloat() + rand.nextFloat() - 1.0F) * 0.15F;
-        level = MathHelper.clamp(Math.round((float) level + (float) level * f), 1, Integer.MAX_VALUE);
-        List<EnchantmentData> cacheList = cachedEnchantList.get(level);
-        List<EnchantmentData> list = new ArrayList<EnchantmentData>(2);
-        if (!cacheList.isEmpty()) {
-            list.add(WeightedRandom.getRandomItem(rand, cacheList));
-
-            if (rand.nextInt(50) <= level) {
-                cacheList = new ArrayList<EnchantmentData>(cacheList);
-                do {
-                    EnchantmentHelper.removeIncompatible(cacheList, list.get(list.size() - 1));
-                    if (cacheList.isEmpty())
-                        break;
-                    list.add(WeightedRandom.getRandomItem(rand, cacheList));
-                    level /= 2;
-                } while (rand.nextInt(50) <= level);
-            }
+    /** Waits for the worker thread to finish, if it's running. */
+    private void awaitExit() {
+        Thread running;
+        synchronized (this) {
+            running = thread;
         }
-
-        if (isBook && list.size() > 1) {
-            list.remove(rand.nextInt(list.size()));
+        if (running == null || running == Thread.currentThread()) {
+            return;
         }
-        tempEnchantmentData[index] = list;
-        if (list.isEmpty()) {
-            return observation.enchants[index] == -1;
+        try {
+            running.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        EnchantmentData data = list.get(rand.nextInt(list.size()));
-        return target == data.enchantment &&
-                observation.enchantLevels[index] == data.enchantmentLevel;
     }
 
-    private static List<EnchantmentData> buildEnchantmentList(
-            Random rand, int seed, Observation observation, int id) {
-        // Do not be deceived: There is a cast to long inside setSeed() in the code this is copied
-        // from, but it happens *after* the addition, meaning it does absolutely nothing.
-        rand.setSeed(seed + id);
-        ItemStack item = observation.item;
-        if (item.getItem() == Items.ENCHANTED_BOOK) {
-            item = new ItemStack(Items.BOOK);
-        }
-        List<EnchantmentData> list = EnchantmentHelper.buildEnchantmentList(rand, item,
-                observation.levels[id], false);
-        if (item.getItem() == Items.BOOK && list.size() > 1) {
-            list.remove(rand.nextInt(list.size()));
-        }
-        return list;
+    @GuardedBy("this")
+    private void startThread() {
+        if (thread != null) {
+            // Worker will handle it.
+            return;
+        }
+        thread = new Thread(this, "EnchantmentWorker");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
     }
 
-    static List<List<EnchantmentData>> buildEnchantListCache(ItemStack item) {
-        List<List<EnchantmentData>> result = Lists.newArrayListWithExpectedSize(100);
-        if (item.getItem() == Items.ENCHANTED_BOOK) {
-            item = new ItemStack(Items.BOOK);
+    private void onChunk(Observation observation) {
+        SeedSolver.Checkpoint progress = solver.getProgress();
+        // Only a full scan takes long enough for an early look to be worth it. Until something has
+        // been found, CALCULATING says it all.
+        if (progress != null && !candidates.isEmpty() && System.nanoTime() - nextPartialNanos >= 0) {
+            state = generateState(observation, true);
+            nextPartialNanos = System.nanoTime() + PARTIAL_INTERVAL_NANOS;
         }
-        for (int power = 0; power < 100; ++power) {
-            if (item.getItem().getItemEnchantability(item) <= 0) {
-                result.add(ImmutableList.<EnchantmentData>of());
-            }
-            result.add(EnchantmentHelper.getEnchantmentDatas(power, item, /*allowTreasure=*/false));
+        if (progress != null && System.nanoTime() - nextCheckpointNanos >= 0) {
+            long start = System.nanoTime();
+            saveSnapshot(progress);
+            // Don't let big candidate sets turn the scan into mostly writing snapshots.
+            nextCheckpointNanos = start + Math.max(CHECKPOINT_INTERVAL_NANOS, 10 * (System.nanoTime() - start));
         }
-        return result;
     }
 
     @GuardedBy("this")
@@ -561,21 +473,23 @@ public class EnchantmentWorker implements Runnable {
         while (true) {
             if (queue.isEmpty()) {
                 thread = null;
-                shrink();
                 return true;
             }
             Observation observation = queue.poll();
+            metrics.recordQueueDepth(queue.size());
             if (observation.power == Observation.RESET_POWER) {
-                if (!isEnchantConsistent(observation)) {
+                if (!solver.isEnchantConsistent(observation)) {
                     // Add for error reporting
                     observations.add(observation);
                     dumpError("inconsistent");
                     return true;
                 }
                 observations.clear();
-                candidatesLength = 0;
+                solver.clear();
                 state = DEFAULT_STATE;
-                didFallback = false;
+                if (snapshots != null) {
+                    snapshots.delete();
+                }
                 continue;
             }
             observations.add(observation);
@@ -583,38 +497,54 @@ public class EnchantmentWorker implements Runnable {
         }
     }
 
-    private boolean isEnchantConsistent(Observation observation) {
-        if (candidatesLength != 1)
-            return true;
-        int id = observation.truncatedSeed;
-        Map<Enchantment, Integer> enchants = EnchantmentHelper.getEnchantments(observation.item);
-        List<EnchantmentData> list = buildEnchantmentList(rand, candidates[0], observation, id);
-        if (enchants.size() != list.size())
-            return false;
-        for (EnchantmentData data : list) {
-            if (enchants.get(data.enchantment) != data.enchantmentLevel)
-                return false;
+    /**
+     * Turns the tallies into a State for the GUI. If partial, the scan is still running, and the
+     * tallies are for the seeds it has found so far.
+     */
+    private State generateState(Observation observation, boolean partial) {
+        int[][] enchants = new int[3][];
+        int[][] counts = new int[3][];
+        fillEnchants(observation, tallies, enchants, counts);
+        if (partial) {
+            return new State(State.Status.PARTIAL, candidates.size(), enchants, counts, observation);
+        }
+        switch (candidates.size()) {
+        case 0:
+            return new State(State.Status.DEFAULT, 0, enchants, counts, observation);
+        case 1:
+            return new State(State.Status.SEED, candidates.first(), enchants, counts, observation);
+        default:
+            return new State(State.Status.POSSIBLES, candidates.size(), enchants, counts, observation);
         }
-        return true;
     }
 
-    private State generateRestingState(Observation observation) {
-        String[][] enchants = new String[3][];
+    /**
+     * A State for what a sample found, before the scan. The counts are the sample's, so that the
+     * GUI can tell how sure the percentages are.
+     */
+    private State generateEstimateState(Observation observation, SeedSolver.Estimate estimate) {
+        int[][] enchants = new int[3][];
         int[][] counts = new int[3][];
+        fillEnchants(observation, estimate.tally, enchants, counts);
+        return new State(State.Status.ESTIMATE, (int) Math.min(Integer.MAX_VALUE, estimate.getCandidates()),
+                enchants, counts, observation);
+    }
+
+    /** Turns a tally into the enchants and counts of a State, in the order State wants them. */
+    private static void fillEnchants(Observation observation, EnchantTally tally, int[][] enchants, int[][] counts) {
         for (int i = 0; i < 3; ++i) {
-            final ArrayList<EnchantCount> list = enchantCounts[i];
+            final ArrayList<EnchantCount> list = tally.toList(i);
             Collections.sort(list);
             Collections.reverse(list);
 
             // Move the observed enchant to the top
             if (!list.isEmpty()) {
-                final EnchantmentData target = new EnchantmentData(
-                        Enchantment.getEnchantmentByID(observation.enchants[i]), observation.enchantLevels[i]);
+                final int target = EnchantNames.pack(observation.enchants[i], observation.enchantLevels[i]);
                 int j;
-                for (j = 0; j < list.size() && !EnchantCount.equals(list.get(j).enchant, target); ++j)
+                for (j = 0; j < list.size() && pack(list.get(j).enchant) != target; ++j)
                     ;
                 if (j == list.size()) {
-                    throw new RuntimeException("Failed to find " + target + " for " + i
+                    throw new RuntimeException("Failed to find " + Integer.toHexString(target) + " for " + i
                             + " in list " + Arrays.toString(list.toArray()));
                 }
                 EnchantCount targetPair = list.get(j);
@@ -624,41 +554,25 @@ public class EnchantmentWorker implements Runnable {
                 list.set(0, targetPair);
             }
 
-            String[] enchantTarget = new String[list.size()];
+            int[] enchantTarget = new int[list.size()];
             int[] countTarget = new int[list.size()];
             for (int j = 0; j < list.size(); ++j) {
                 EnchantCount item = list.get(j);
-                enchantTarget[j] = item.enchant.enchantment.func_200305_d(item.enchant.enchantmentLevel).getString();
+                enchantTarget[j] = pack(item.enchant);
                 countTarget[j] = item.count;
             }
             enchants[i] = enchantTarget;
             counts[i] = countTarget;
         }
-        String message;
-        switch (candidatesLength) {
-        case 0:
-            message = DEFAULT_STATUS;
-            break;
-        case 1:
-            message = I18n.format("enchantmentrevealer.status.seed", candidates[0]);
-            break;
-        default:
-            message = I18n.format("enchantmentrevealer.status.possibles", candidatesLength);
-        }
-        return new State(message, enchants, counts, observation);
     }
 
-    private void shrink() {
-        int newSize = Math.max(candidatesLength, INITIAL_SIZE);
-        if (newSize != candidates.length) {
-            candidates = Arrays.copyOf(candidates, newSize);
-        }
+    private static int pack(EnchantmentData data) {
+        return EnchantNames.pack(Observation.getEnchantmentID(data.enchantment), data.enchantmentLevel);
     }
 
     private synchronized void dumpError(String tag) {
-        state = new State(TextFormatting.RED
-                + I18n.format("enchantmentrevealer.error.mainmessage"), NO_STRINGS, NO_INTS,
-                observations.get(observations.size() - 1));
+        FlightEvents.error(tag, observations.get(observations.size() - 1), observations.size());
+        state = new State(State.Status.ERROR, 0, NO_ENCHANTS, NO_INTS, observations.get(observations.size() - 1));
         guiChat.printChatMessage(new TextComponentTranslation("enchantmentrevealer.error.part1",
                 new TextComponentTranslation("enchantmentrevealer.error." + tag), "d0sboots",
                 "gmai", "l.com").setStyle(
@@ -671,36 +585,114 @@ public class EnchantmentWorker implements Runnable {
                     .setStyle(new Style().setColor(TextFormatting.YELLOW)));
         }
         observations.clear();
-        candidatesLength = 0;
+        solver.clear();
         thread = null;
-        didFallback = false;
-        shrink();
+        if (snapshots != null) {
+            snapshots.delete();
+        }
     }
 
-    private void addAndTallyEnchants(int v, List<EnchantmentData>[] tempEnchantData) {
-        if (candidatesLength >= candidates.length) {
-            candidates = Arrays.copyOf(candidates, candidates.length << 1);
+    /**
+     * Saves everything needed to pick up where we are now. With a checkpoint, that's partway through
+     * a full scan for the last observation. Otherwise it's the resting state after the last
+     * observation with enchants.
+     */
+    private void saveSnapshot(@Nullable SeedSolver.Checkpoint checkpoint) {
+        if (snapshots == null) {
+            return;
         }
-        candidates[candidatesLength++] = v;
+        long start = System.nanoTime();
+        boolean saved = snapshots.save(out -> {
+            out.writeBoolean(solver.didFallback());
+            out.writeInt(observations.size());
+            for (Observation observation : observations) {
+                observation.write(out);
+            }
+            candidates.write(out);
+            for (int i = 0; i < 3; ++i) {
+                ArrayList<EnchantCount> list = tallies.toList(i);
+                out.writeInt(list.size());
+                for (EnchantCount pair : list) {
+                    out.writeInt(Observation.getEnchantmentID(pair.enchant.enchantment));
+                    out.writeInt(pair.enchant.enchantmentLevel);
+                    out.writeInt(pair.count);
+                }
+            }
+            out.writeBoolean(checkpoint != null);
+            if (checkpoint != null) {
+                out.writeInt(checkpoint.scanObservations);
+                out.writeInt(checkpoint.log2BatchSize);
+                out.writeInt(checkpoint.nextChunk);
+            }
+        });
+        if (saved) {
+            LOGGER.debug("Saved snapshot of {} candidates in {}ms", candidates.size(),
+                    (System.nanoTime() - start) / 1000000);
+        }
+    }
 
-        for (int i = 0; i < 3; ++i) {
-            ArrayList<EnchantCount> list = enchantCounts[i];
-            List<EnchantmentData> enchantData = tempEnchantData[i];
-            if (enchantData == null) {
-                continue;
+    /**
+     * Loads the snapshot, if there is a usable one. Returns true if it was saved partway through a
+     * full scan, which resumeFrom is then set up to continue.
+     */
+    private boolean restoreSnapshot() {
+        EnchantmentWorker previous;
+        synchronized (this) {
+            previous = predecessor;
+            predecessor = null;
+        }
+        if (previous != null) {
+            previous.awaitExit();
+        }
+        long start = System.nanoTime();
+        final SeedSolver.Checkpoint[] checkpoint = new SeedSolver.Checkpoint[1];
+        boolean loaded = snapshots.load(in -> {
+            solver.setDidFallback(in.readBoolean());
+            int size = in.readInt();
+            for (int i = 0; i < size; ++i) {
+                observations.add(Observation.read(in));
             }
-            outer: for (EnchantmentData data : enchantData) {
-                final int size = list.size();
+            candidates.read(in);
+            for (int i = 0; i < 3; ++i) {
+                size = in.readInt();
                 for (int j = 0; j < size; ++j) {
-                    EnchantCount pair = list.get(j);
-                    if (EnchantCount.equals(pair.enchant, data)) {
-                        pair.count++;
-                        continue outer;
+                    int id = in.readInt();
+                    int level = in.readInt();
+                    int count = in.readInt();
+                    if (Enchantment.getEnchantmentByID(id) == null || level < 0) {
+                        throw new IOException("Unknown enchantment in tallies");
                     }
+                    tallies.add(i, id, level, count);
                 }
-                list.add(new EnchantCount(1, data));
             }
+            if (in.readBoolean()) {
+                checkpoint[0] = new SeedSolver.Checkpoint(in.readInt(), in.readInt(), in.readInt());
+            }
+        });
+        if (loaded && observations.isEmpty()) {
+            loaded = false;
+        }
+        synchronized (this) {
+            // Anything that already arrived is newer than the snapshot. A reset makes it moot.
+            for (Observation observation : queue) {
+                if (observation.power == Observation.RESET_POWER) {
+                    loaded = false;
+                }
+            }
+            if (!loaded) {
+                observations.clear();
+                solver.clear();
+                return false;
+            }
+        }
+        LOGGER.info("Restored {} observations and {} candidates in {}ms", observations.size(),
+                candidates.size(), (System.nanoTime() - start) / 1000000);
+        metrics.recordCandidates(candidates);
+        resumeFrom = checkpoint[0];
+        if (resumeFrom == null) {
+            state = generateState(observations.get(observations.size() - 1), false);
         }
+        return resumeFrom != null;
     }
 
     public synchronized void reportEnchantBegin(Observation observation) { pendingEnchant = observation; }
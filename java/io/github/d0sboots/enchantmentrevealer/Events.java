@@ -22,11 +22,19 @@ import net.minecraftforge.client.event.GuiOpenEvent;
 import net.minecraftforge.event.entity.player.PlayerInteractEvent.RightClickBlock;
 import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.loading.FMLPaths;
 
 public class Events {
+    private final SessionCache sessions =
+            new SessionCache(() -> EnchantmentRevealer.CONFIG.sessionCacheMegabytes.get() * (1L << 20));
     private EnchantmentWorker worker;
     private BlockPos lastInteractPos;
 
+    public Events() {
+        // Spill files are deleted when they're done with, but not if the game crashed or was killed.
+        CandidateSet.deleteSpillFiles(FMLPaths.GAMEDIR.get().resolve(EnchantmentRevealer.MODID));
+    }
+
     @SubscribeEvent
     public void onGui(GuiOpenEvent event) {
         if (event.getGui() == null || !GuiEnchantment.class.equals(event.getGui().getClass())) {
@@ -42,8 +50,29 @@ public class Events {
 
     @SubscribeEvent
     public void onWorldLoad(WorldEvent.Load event) {
-        if (event.getWorld() instanceof WorldClient) {
-            worker = new EnchantmentWorker(Minecraft.getInstance().ingameGUI.getChatGUI());
+        if (!(event.getWorld() instanceof WorldClient)) {
+            return;
+        }
+        SnapshotStore snapshots = SnapshotStore.forCurrentSession();
+        if (worker != null && snapshots.getKey().equals(worker.getSnapshotKey())) {
+            // Same server and player (i.e. a dimension change), so the xpSeed hasn't changed.
+            return;
+        }
+        if (worker != null) {
+            sessions.park(worker);
+        }
+        worker = sessions.take(snapshots.getKey());
+        ObservationTrace trace =
+                EnchantmentRevealer.CONFIG.recordTraces.get() ? ObservationTrace.forNewSession() : null;
+        if (worker != null) {
+            // A server we've been on before, with everything still worked out. Its trace was closed
+            // when it was parked.
+            worker.setTrace(trace);
+            return;
         }
+        EnchantTableCache.warm();
+        worker = new EnchantmentWorker(Minecraft.getInstance().ingameGUI.getChatGUI(), snapshots, trace);
+        // If the last worker for this session was closed mid-scan, it may still be checkpointing.
+        worker.resume(sessions.takeClosed(snapshots.getKey()));
     }
 }
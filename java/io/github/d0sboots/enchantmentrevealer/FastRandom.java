@@ -0,0 +1,114 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.Random;
+
+/**
+ * A bit-exact copy of the 48-bit LCG inside java.util.Random, with the state held in a plain long.
+ *
+ * java.util.Random keeps its seed in an AtomicLong, so every call is a CAS. That's fine for normal
+ * use, but doInitialFull() makes billions of calls, and none of them are shared between threads.
+ * Every method here must produce exactly the same values (and consume exactly the same number of
+ * LCG steps) as the java.util.Random method of the same name.
+ */
+public class FastRandom {
+    static final long MULTIPLIER = 0x5DEECE66DL;
+    static final long ADDEND = 0xBL;
+    static final long MASK = (1L << 48) - 1;
+
+    /**
+     * Set this system property to true to get checked instances out of {@link #create()}. They run a
+     * java.util.Random alongside and throw as soon as the two disagree. This is slow, so it's meant
+     * for debugging only.
+     */
+    static final boolean VERIFY = Boolean.getBoolean("enchantmentrevealer.verifyRandom");
+
+    private long seed;
+
+    public FastRandom() {}
+
+    /** Returns a new instance, which will be a {@link Checked} one if verification is turned on. */
+    public static FastRandom create() { return VERIFY ? new Checked() : new FastRandom(); }
+
+    /** The initial scramble done by Random.setSeed(). */
+    static long scramble(long seed) { return (seed ^ MULTIPLIER) & MASK; }
+
+    /** A single LCG step, as done by Random.next(). */
+    static long step(long state) { return (state * MULTIPLIER + ADDEND) & MASK; }
+
+    public void setSeed(long seed) { this.seed = scramble(seed); }
+
+    protected int next(int bits) {
+        long nextSeed = step(seed);
+        seed = nextSeed;
+        return (int) (nextSeed >>> (48 - bits));
+    }
+
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        int r = next(31);
+        int m = bound - 1;
+        if ((bound & m) == 0) { // Power of two
+            return (int) ((bound * (long) r) >> 31);
+        }
+        for (int u = r; u - (r = u % bound) + m < 0; u = next(31))
+            ;
+        return r;
+    }
+
+    public float nextFloat() { return next(24) / ((float) (1 << 24)); }
+
+    /**
+     * Verification mode: Every call is mirrored to a real java.util.Random, and the results are
+     * compared.
+     */
+    public static class Checked extends FastRandom {
+        private final Random shadow = new Random(0);
+
+        @Override
+        public void setSeed(long seed) {
+            super.setSeed(seed);
+            shadow.setSeed(seed);
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            int expected = shadow.nextInt(bound);
+            return check(super.nextInt(bound), expected, "nextInt(" + bound + ")");
+        }
+
+        @Override
+        public float nextFloat() {
+            float expected = shadow.nextFloat();
+            float actual = super.nextFloat();
+            if (Float.floatToRawIntBits(actual) != Float.floatToRawIntBits(expected)) {
+                throw new IllegalStateException("FastRandom diverged from java.util.Random in nextFloat(): "
+                        + actual + " != " + expected);
+            }
+            return actual;
+        }
+
+        private static int check(int actual, int expected, String what) {
+            if (actual != expected) {
+                throw new IllegalStateException("FastRandom diverged from java.util.Random in " + what
+                        + ": " + actual + " != " + expected);
+            }
+            return actual;
+        }
+    }
+}
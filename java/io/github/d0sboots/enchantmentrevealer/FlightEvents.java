@@ -0,0 +1,184 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import javax.annotation.Nullable;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the worker, so that a recording shows which observation and
+ * which scan phase a long stall came from, lined up with GC and the game thread.
+ *
+ * When recording is off, an event is never filled in, just created and dropped, which the JIT
+ * turns into nothing. jdk.jfr isn't there on older Java 8 runtimes, though, so nothing outside
+ * this class touches it, and the event classes are never loaded unless it's there.
+ */
+public class FlightEvents {
+    /** For the range of a scan phase that doesn't cover one, which leaves the fields unset. */
+    static final long NO_RANGE = -1;
+    private static final boolean AVAILABLE = isAvailable();
+
+    @Name("enchantmentrevealer.Observation")
+    @Label("Observation")
+    @Category("EnchantmentRevealer")
+    @Description("An item observation was matched to the table's data and sent to the worker")
+    static class ObservationEvent extends Event {
+        @Label("Observation")
+        String observation;
+        @Label("Ticks Waited")
+        long ticksWaited;
+        @Label("Timed Out")
+        @Description("The server data never changed, so the item was matched after syncTicksMax ticks")
+        boolean timedOut;
+    }
+
+    @Name("enchantmentrevealer.ScanPhase")
+    @Label("Scan Phase")
+    @Category("EnchantmentRevealer")
+    @Description("The worker scanned seeds for an observation")
+    static class ScanPhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Observation")
+        String observation;
+        @Label("Range Start")
+        @Description("The first seed of the range scanned, as an unsigned value. Only set for the full scan")
+        long rangeStart;
+        @Label("Range End")
+        @Description("One past the last seed of the range scanned. Only set for the full scan, since "
+                + "refine only looks at the candidates, and the hinted scan only at the seeds that match the hint")
+        long rangeEnd;
+        @Label("Seeds Scanned")
+        long seedsScanned;
+        @Label("Survivors")
+        int survivors;
+        @Label("Finished")
+        @Description("False if the scan was cancelled")
+        boolean finished;
+    }
+
+    @Name("enchantmentrevealer.Fallback")
+    @Label("Seed Hint Fallback")
+    @Category("EnchantmentRevealer")
+    @Description("The seed hint left no candidates, so the worker is redoing everything without it")
+    static class FallbackEvent extends Event {
+        @Label("Observation")
+        String observation;
+        @Label("Observations")
+        int observations;
+    }
+
+    @Name("enchantmentrevealer.Error")
+    @Label("Worker Error")
+    @Category("EnchantmentRevealer")
+    @Description("The worker gave up and reported an error in chat")
+    static class ErrorEvent extends Event {
+        @Label("Tag")
+        String tag;
+        @Label("Observation")
+        String observation;
+        @Label("Observations")
+        int observations;
+    }
+
+    /** The event for one scan phase, which is timed from construction to end(). */
+    static class Scan {
+        @Nullable
+        private final ScanPhaseEvent event;
+
+        Scan() {
+            if (AVAILABLE) {
+                event = new ScanPhaseEvent();
+                event.begin();
+            } else {
+                event = null;
+            }
+        }
+
+        void end(SolverMetrics.Phase phase, Observation observation, long rangeStart, long rangeEnd,
+                long seedsScanned, int survivors, boolean finished) {
+            if (event == null) {
+                return;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.name();
+                event.observation = observation.toString();
+                if (rangeEnd != NO_RANGE) {
+                    event.rangeStart = rangeStart;
+                    event.rangeEnd = rangeEnd;
+                }
+                event.seedsScanned = seedsScanned;
+                event.survivors = survivors;
+                event.finished = finished;
+                event.commit();
+            }
+        }
+    }
+
+    private FlightEvents() {}
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static void observation(Observation observation, long ticksWaited, boolean timedOut) {
+        if (!AVAILABLE) {
+            return;
+        }
+        ObservationEvent event = new ObservationEvent();
+        if (event.shouldCommit()) {
+            event.observation = observation.toString();
+            event.ticksWaited = ticksWaited;
+            event.timedOut = timedOut;
+            event.commit();
+        }
+    }
+
+    static void fallback(Observation observation, int observations) {
+        if (!AVAILABLE) {
+            return;
+        }
+        FallbackEvent event = new FallbackEvent();
+        if (event.shouldCommit()) {
+            event.observation = observation.toString();
+            event.observations = observations;
+            event.commit();
+        }
+    }
+
+    static void error(String tag, @Nullable Observation observation, int observations) {
+        if (!AVAILABLE) {
+            return;
+        }
+        ErrorEvent event = new ErrorEvent();
+        if (event.shouldCommit()) {
+            event.tag = tag;
+            event.observation = String.valueOf(observation);
+            event.observations = observations;
+            event.commit();
+        }
+    }
+}
@@ -30,7 +30,6 @@ import net.minecraft.inventory.ContainerEnchantment;
 import net.minecraft.util.INameable;
 import net.minecraft.util.ResourceLocation;
 import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.text.TextFormatting;
 import net.minecraft.world.World;
 
 public class GuiEnchantmentWrapper extends GuiEnchantment {
@@ -57,9 +56,15 @@ public class GuiEnchantmentWrapper extends GuiEnchantment {
     private final InventoryPlayer inventory;
     private final INameable nameableShadow;
     private EnchantmentWorker.State lastState;
+    // Built from lastState, whenever it changes.
+    private EnchantLayout layout;
+    // The progress message, and the state and percentage it was formatted for.
+    private String progressMessage;
+    private EnchantmentWorker.State progressState;
+    private int progressPercent;
+    // The FontResourceManager's renderers, once we've dug them out.
+    private Map<ResourceLocation, FontRenderer> fontRenderers;
     private long scrollBaseMs = System.currentTimeMillis();
-    @SuppressWarnings("unchecked")
-    private final ArrayList<String>[] tooltipText = new ArrayList[3];
 
     public GuiEnchantmentWrapper(
             InventoryPlayer inventory, World worldIn, EnchantmentWorker worker, BlockPos pos, INameable nameable) {
@@ -73,9 +78,6 @@ public class GuiEnchantmentWrapper extends GuiEnchantment {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        for (int i = 0; i < 3; ++i) {
-            tooltipText[i] = new ArrayList<String>();
-        }
         this.worker = worker;
         this.inventory = inventory;
     }
@@ -96,8 +98,12 @@ public class GuiEnchantmentWrapper extends GuiEnchantment {
         }
         // We don't want the gibberish text to render, but we want the rest of the standard GUI
         // stuff, so we replace the renderer before delegating and then put it back after.
-        FontRenderer saved = mc.getFontResourceManager().getFontRenderer(Minecraft.standardGalacticFontRenderer);
-        Map<ResourceLocation, FontRenderer> renderers = mapField.get(mc.getFontResourceManager());
+        if (fontRenderers == null) {
+            // The map itself never changes, just what's in it, so the reflection only happens once.
+            fontRenderers = mapField.get(mc.getFontResourceManager());
+        }
+        Map<ResourceLocation, FontRenderer> renderers = fontRenderers;
+        FontRenderer saved = renderers.get(Minecraft.standardGalacticFontRenderer);
         renderers.put(Minecraft.standardGalacticFontRenderer, dummyFontRenderer);
         super.drawGuiContainerBackgroundLayer(partialTicks, mouseX, mouseY);
         renderers.put(Minecraft.standardGalacticFontRenderer, saved);
@@ -105,52 +111,15 @@ public class GuiEnchantmentWrapper extends GuiEnchantment {
         if (lastState.observation != ((ContainerEnchantmentWrapper) inventorySlots).lastObservation) {
             return; // Out-of-sync, happens when the GUI is closed with an item still present
         }
-        FontRenderer renderer = mc.fontRenderer;
-
         // Use the scissor test to clip scrolling/oversize text to within the GUI. We have to
         // rescale to get screen coordinates from GUI (scaled) coordinates.
         int midX = (width - xSize) / 2;
         int midY = (height - ySize) / 2;
-        final int leftBound = 78;
-        final int rightBound = 166;
-        int clipMinX = (midX + leftBound) * mc.mainWindow.getWidth() / width;
-        int scissorWidth = (rightBound - leftBound) * mc.mainWindow.getWidth() / width;
+        int clipMinX = (midX + EnchantLayout.LEFT_BOUND) * mc.mainWindow.getWidth() / width;
+        int scissorWidth = (EnchantLayout.RIGHT_BOUND - EnchantLayout.LEFT_BOUND) * mc.mainWindow.getWidth() / width;
         GL11.glEnable(GL11.GL_SCISSOR_TEST);
         GL11.glScissor(clipMinX, 0, scissorWidth, mc.mainWindow.getHeight());
-
-        float scrollFraction = getScrollFraction();
-        for (int i = 0; i < 3; ++i) {
-            String[] enchants = lastState.enchants[i];
-            if (enchants.length == 0) {
-                continue;
-            }
-
-            String ench = enchants[0];
-            int stringWidth = renderer.getStringWidth(ench);
-            float adjust = (stringWidth <= rightBound - leftBound ? 0.5F : scrollFraction)
-                    * (rightBound - leftBound - stringWidth);
-            renderer.drawString(ench, midX + leftBound + adjust, midY + 15 + 19 * i, 0x222222);
-
-            int[] enchantCounts = lastState.counts[i];
-            int ecLen = enchantCounts.length;
-            if (ecLen == 1) {
-                continue; // Don't do "+0 more"
-            }
-
-            final String plusX;
-            if (enchantCounts[ecLen - 1] == enchantCounts[0]) {
-                plusX = "" + (ecLen - 1);
-            } else {
-                int acc = 0;
-                for (int j = 1; j < ecLen; ++j) {
-                    acc += enchantCounts[j];
-                }
-                int total = (int) (((acc * 200L + 1) / enchantCounts[0]) >>> 1);
-                plusX = String.format("%d.%02d", total / 100, total % 100);
-            }
-            renderer.drawString(I18n.format("enchantmentrevealer.text.plusx", plusX),
-                    midX + leftBound + 2, midY + 24 + 19 * i, 0x222222);
-        }
+        layout.draw(mc.fontRenderer, midX, midY, getScrollFraction());
         GL11.glDisable(GL11.GL_SCISSOR_TEST);
     }
 
@@ -175,58 +144,12 @@ public class GuiEnchantmentWrapper extends GuiEnchantment {
         EnchantmentWorker.State newState = worker.state;
         if (!worker.isDisabled() && newState != lastState) {
             lastState = newState;
-            calculateTooltipText();
+            layout = new EnchantLayout(newState, mc.fontRenderer, EnchantmentRevealer.CONFIG.verboseDebug.get());
             scrollBaseMs = System.currentTimeMillis();
         }
         super.render(mouseX, mouseY, partialTicks);
     }
 
-    private void calculateTooltipText() {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < 3; ++i) {
-            ArrayList<String> text = tooltipText[i];
-            String[] enchants = lastState.enchants[i];
-            int[] counts = lastState.counts[i];
-
-            boolean hidePercent = counts.length == 0 || counts[0] == counts[counts.length - 1];
-            text.clear();
-            for (int j = 0; j < enchants.length; ++j) {
-                if (hidePercent) {
-                    // Duplicate the highlighting of the normal GUI
-                    builder.append(TextFormatting.WHITE);
-                    builder.append(TextFormatting.ITALIC);
-                } else {
-                    builder.append(TextFormatting.YELLOW);
-                }
-                builder.append(enchants[j]);
-                builder.append(TextFormatting.RESET);
-                String styled = builder.toString();
-                String which = EnchantmentRevealer.CONFIG.verboseDebug.get()
-                        ? "verbose"
-                        : "normal";
-                if (hidePercent) {
-                    text.add(I18n.format("enchantmentrevealer.tooltip." + which,
-                            styled, counts[j]));
-                } else {
-                    text.add(I18n.format("enchantmentrevealer.tooltip.percent." + which,
-                            styled, percentage(counts[j], counts[0]), counts[j]));
-                }
-                builder.setLength(0);
-            }
-        }
-    }
-
-    private static String percentage(int numerator, int denominator) {
-        if (numerator * 2000L >= 199L * denominator) {
-            return ((numerator * 200L / denominator + 1L) >>> 1) + "";
-        }
-        if (numerator * 20000L >= 199L * denominator) {
-            int foo = (int) ((numerator * 2000L / denominator + 1L) >>> 1);
-            return foo / 10 + "." + foo % 10;
-        }
-        return String.format("0.%02d", (numerator * 20000L / denominator + 1L) >>> 1);
-    }
-
     @Override
     protected void drawGuiContainerForegroundLayer(int mouseX, int mouseY) {
         String message = EnchantmentWorker.DEFAULT_STATUS;
@@ -235,8 +158,16 @@ public class GuiEnchantmentWrapper extends GuiEnchantment {
                     worker.isDisabled() ? "enchantmentrevealer.status.enable" : "enchantmentrevealer.status.disable");
         } else if (worker.isDisabled()) {
             message = nameableShadow.getDisplayName().getFormattedText();
+        } else if (lastState != null && lastState.isInProgress()) {
+            int percent = worker.getScanProgress().getPercent();
+            if (lastState != progressState || percent != progressPercent) {
+                progressState = lastState;
+                progressPercent = percent;
+                progressMessage = lastState.getProgressMessage(percent);
+            }
+            message = progressMessage;
         } else if (lastState != null) {
-            message = lastState.statusMessage;
+            message = lastState.getStatusMessage();
         }
         fontRenderer.drawString(message, TITLE_OFFSET_X, TITLE_OFFSET_Y, 0x404040);
         fontRenderer.drawString(inventory.getDisplayName().getFormattedText(),
@@ -263,14 +194,14 @@ public class GuiEnchantmentWrapper extends GuiEnchantment {
         Observation lastObservation =
                 ((ContainerEnchantmentWrapper) inventorySlots).lastObservation;
         if (lastObservation != lastState.observation ||
-                lastState.enchants == EnchantmentWorker.NO_STRINGS) {
+                lastState.enchants == EnchantmentWorker.NO_ENCHANTS) {
             // We don't have a new result yet, pass through.
             super.drawHoveringText(textLines, x, y);
             return;
         }
         for (int i = 0; i < 3; ++i) {
             if (isPointInRegion(60, 14 + 19 * i, 108, 17, x, y)) {
-                ArrayList<String> newLines = tooltipText[i];
+                ArrayList<String> newLines = layout.tooltips[i];
                 int originalSize = newLines.size();
                 if (!textLines.isEmpty()) {
                     newLines.addAll(textLines.subList(1, textLines.size()));
@@ -0,0 +1,485 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Lists the seeds that can produce an observation's levels directly, instead of testing every seed.
+ *
+ * The level for each slot comes from nextInt(8) (the top 3 bits of one LCG output) plus
+ * nextInt(power + 1) (the top bits of the next output, when power + 1 is a power of two). So a set
+ * of observed levels is really a set of boxes: ranges of values for a handful of LCG outputs. And
+ * every LCG output is an affine function of the seed, mod 2^48. The seeds that land in one box are
+ * the points of a lattice that fall inside a box, which we find by LLL-reducing the lattice and
+ * then running a Fincke-Pohst style enumeration. With a reduced basis, the enumeration only visits
+ * a small constant factor more points than actually land in the box.
+ *
+ * Everything that comes out is re-checked with {@link SeedSolver#testLevelsFast}, so the
+ * boxes only have to be a superset of the real answer. The one thing the boxes can't see is the
+ * rejection loop inside nextInt() for bounds that aren't powers of two, which shifts all the later
+ * outputs. Those seeds (a handful out of 2^32) are found with their own one-output boxes.
+ *
+ * Results for a block come out in increasing order. Instances hold scratch space, so they aren't
+ * thread-safe; use {@link #copy()} to get one per thread.
+ */
+public class LcgSolver {
+    /** Use the solver if the boxes cover less than this fraction of the seed space. */
+    private static final double MAX_FRACTION = 0.125;
+    // The seed offset, plus up to four constrained outputs.
+    private static final int MAX_DIMENSIONS = 5;
+    // Outputs 1-6 are the ones used by the level calculation.
+    private static final int MAX_OUTPUTS = 7;
+    private static final long MODULUS = 1L << 48;
+    // Setting the seed xors it with the multiplier. For the low 32 bits, this is the part that
+    // matters.
+    private static final long SEED_XOR = FastRandom.MULTIPLIER & 0xFFFFFFFFL;
+    // The high 16 bits of the scrambled seed, depending on the sign of the (sign-extended) seed.
+    private static final long HIGH_POSITIVE = FastRandom.MULTIPLIER & ~0xFFFFFFFFL;
+    private static final long HIGH_NEGATIVE = (-1L ^ FastRandom.MULTIPLIER) & FastRandom.MASK & ~0xFFFFFFFFL;
+
+    // LCG output k is OUT_MUL[k] * state + OUT_ADD[k] (mod 2^48), where state is the scrambled seed.
+    private static final long[] OUT_MUL = new long[MAX_OUTPUTS];
+    private static final long[] OUT_ADD = new long[MAX_OUTPUTS];
+    static {
+        long mul = 1;
+        long add = 0;
+        for (int k = 0; k < MAX_OUTPUTS; ++k) {
+            OUT_MUL[k] = mul;
+            OUT_ADD[k] = add;
+            mul = (mul * FastRandom.MULTIPLIER) & FastRandom.MASK;
+            add = (add * FastRandom.MULTIPLIER + FastRandom.ADDEND) & FastRandom.MASK;
+        }
+    }
+
+    /** A range constraint [lo, hi] on LCG output number "output". */
+    private static class Constraint {
+        final int output;
+        final long lo;
+        final long hi;
+
+        Constraint(int output, long lo, long hi) {
+            this.output = output;
+            this.lo = lo;
+            this.hi = hi;
+        }
+    }
+
+    /**
+     * The lattice for one set of constrained outputs and box widths, reduced once and shared by every
+     * box and block with the same shape.
+     */
+    private static class Shape {
+        final int dim;
+        final int[] outputs;
+        // Reduced basis, in unscaled integer coordinates. Coordinate 0 is the seed offset.
+        final long[][] basis;
+        // Gram-Schmidt data for the scaled basis.
+        final double[][] mu;
+        final double[] norms;
+        final double[][] orthogonal;
+        final double[] scale;
+
+        Shape(int[] outputs, long[] widths) {
+            dim = outputs.length + 1;
+            this.outputs = outputs;
+            scale = new double[dim];
+            for (int c = 0; c < dim; ++c) {
+                scale[c] = 1.0 / widths[c];
+            }
+            basis = new long[dim][dim];
+            basis[0][0] = 1;
+            for (int j = 1; j < dim; ++j) {
+                basis[0][j] = OUT_MUL[outputs[j - 1]];
+                basis[j][j] = MODULUS;
+            }
+            mu = new double[dim][dim];
+            norms = new double[dim];
+            orthogonal = new double[dim][dim];
+            reduce();
+        }
+
+        private void gramSchmidt() {
+            for (int i = 0; i < dim; ++i) {
+                double[] star = orthogonal[i];
+                for (int c = 0; c < dim; ++c) {
+                    star[c] = basis[i][c] * scale[c];
+                }
+                for (int j = 0; j < i; ++j) {
+                    double dot = 0;
+                    for (int c = 0; c < dim; ++c) {
+                        dot += basis[i][c] * scale[c] * orthogonal[j][c];
+                    }
+                    mu[i][j] = dot / norms[j];
+                    for (int c = 0; c < dim; ++c) {
+                        star[c] -= mu[i][j] * orthogonal[j][c];
+                    }
+                }
+                double norm = 0;
+                for (int c = 0; c < dim; ++c) {
+                    norm += star[c] * star[c];
+                }
+                norms[i] = norm;
+            }
+        }
+
+        /** Textbook LLL with delta = 0.99. Throws ArithmeticException if the basis overflows. */
+        private void reduce() {
+            gramSchmidt();
+            int k = 1;
+            while (k < dim) {
+                for (int j = k - 1; j >= 0; --j) {
+                    long q = Math.round(mu[k][j]);
+                    if (q != 0) {
+                        for (int c = 0; c < dim; ++c) {
+                            basis[k][c] = Math.subtractExact(basis[k][c], Math.multiplyExact(q, basis[j][c]));
+                        }
+                        gramSchmidt();
+                    }
+                }
+                if (norms[k] >= (0.99 - mu[k][k - 1] * mu[k][k - 1]) * norms[k - 1]) {
+                    k++;
+                } else {
+                    long[] temp = basis[k];
+                    basis[k] = basis[k - 1];
+                    basis[k - 1] = temp;
+                    gramSchmidt();
+                    k = Math.max(k - 1, 1);
+                }
+            }
+        }
+    }
+
+    private final Observation observation;
+    private final int log2BlockSize;
+    // Every combination of boxes, one list of constraints per combination.
+    private final List<Constraint[]> boxes;
+    private final Map<String, Shape> shapes;
+    private final double fraction;
+
+    // Scratch space for enumerate()
+    private final long[] lo = new long[MAX_DIMENSIONS];
+    private final long[] hi = new long[MAX_DIMENSIONS];
+    private final double[] target = new double[MAX_DIMENSIONS];
+    private final long[] coeffs = new long[MAX_DIMENSIONS];
+    private final long[][] partial = new long[MAX_DIMENSIONS + 1][MAX_DIMENSIONS];
+    // One bit per seed in the block, indexed by the low bits of the seed. This sorts and
+    // de-duplicates the seeds, since the boxes can overlap.
+    private final long[] hits;
+    private long blockStart;
+    private final FastRandom rand = FastRandom.create();
+
+    /** Output buffer: A psuedo-ArrayList of the seeds found by the last call to solve(). */
+    int[] found = new int[1024];
+    int foundLength;
+
+    private LcgSolver(Observation observation, int log2BlockSize, List<Constraint[]> boxes,
+            Map<String, Shape> shapes, double fraction) {
+        this.observation = observation;
+        this.log2BlockSize = log2BlockSize;
+        this.boxes = boxes;
+        this.shapes = shapes;
+        this.fraction = fraction;
+        hits = new long[Math.max(1, (1 << log2BlockSize) >>> 6)];
+    }
+
+    /** Returns a solver that shares all the precomputed state with this one. */
+    public LcgSolver copy() { return new LcgSolver(observation, log2BlockSize, boxes, shapes, fraction); }
+
+    /** The fraction of the seed space covered by the boxes, i.e. the fraction the solver visits. */
+    public double getFraction() { return fraction; }
+
+    /**
+     * Builds a solver for blocks of 2^log2BlockSize seeds (at least 64). Returns null if the observed levels don't
+     * constrain the seed enough for the solver to be faster than just testing every seed.
+     */
+    @Nullable
+    public static LcgSolver create(Observation observation, int log2BlockSize) {
+        int power = observation.power;
+        if (power > 15) {
+            power = 15;
+        }
+        int p1 = 1 + (power >> 1);
+        int p2 = power + 1;
+        boolean powerOfTwo = (p2 & (p2 - 1)) == 0;
+        int rBits = Integer.numberOfTrailingZeros(p2);
+
+        // For each slot, the ways of constraining it: Index 0 is no constraint, 1 is only the
+        // nextInt(8) output, and 2 (if possible) is both outputs.
+        List<List<List<Constraint[]>>> options = new ArrayList<List<List<Constraint[]>>>();
+        List<double[]> fractions = new ArrayList<double[]>();
+        for (int slot = 0; slot < 3; ++slot) {
+            // allowed[n] is the [lo, hi] range of nextInt(p2) values that work with nextInt(8) == n.
+            // The ranges are contiguous, since the level never decreases as either value increases.
+            int[][] allowed = new int[8][];
+            int pairs = 0;
+            for (int n = 0; n < 8; ++n) {
+                for (int r = 0; r < p2; ++r) {
+                    if (slotLevel(slot, n + p1 + r, power) == observation.levels[slot]) {
+                        if (allowed[n] == null) {
+                            allowed[n] = new int[] { r, r };
+                        }
+                        allowed[n][1] = r;
+                        pairs++;
+                    }
+                }
+            }
+            if (pairs == 0) {
+                return null; // Impossible levels, let the normal path deal with it
+            }
+            List<List<Constraint[]>> slotOptions = new ArrayList<List<Constraint[]>>();
+            slotOptions.add(Collections.singletonList(new Constraint[0]));
+            int first = 0;
+            while (allowed[first] == null) {
+                first++;
+            }
+            int last = 7;
+            while (allowed[last] == null) {
+                last--;
+            }
+            slotOptions.add(Collections.singletonList(new Constraint[] {
+                    new Constraint(2 * slot + 1, (long) first << 45, ((long) (last + 1) << 45) - 1) }));
+            List<Constraint[]> both = new ArrayList<Constraint[]>();
+            if (powerOfTwo && p2 > 1) {
+                for (int n = 0; n < 8; ++n) {
+                    if (allowed[n] != null) {
+                        both.add(new Constraint[] {
+                                new Constraint(2 * slot + 1, (long) n << 45, ((long) (n + 1) << 45) - 1),
+                                new Constraint(2 * slot + 2, (long) allowed[n][0] << (48 - rBits),
+                                        ((long) (allowed[n][1] + 1) << (48 - rBits)) - 1) });
+                    }
+                }
+                slotOptions.add(both);
+            }
+            options.add(slotOptions);
+            fractions.add(new double[] { 1.0, (last - first + 1) / 8.0, pairs / (8.0 * p2) });
+        }
+
+        // Pick the combination that covers the least of the seed space. The enumeration overhead
+        // grows quickly with the number of dimensions, so we don't go past four constrained outputs.
+        int[] best = null;
+        double fraction = MAX_FRACTION;
+        for (int a = 0; a < options.get(0).size(); ++a) {
+            for (int b = 0; b < options.get(1).size(); ++b) {
+                for (int c = 0; c < options.get(2).size(); ++c) {
+                    double f = fractions.get(0)[a] * fractions.get(1)[b] * fractions.get(2)[c];
+                    if (a + b + c == 0 || a + b + c > MAX_DIMENSIONS - 1 || f > fraction
+                            || (f == fraction && best != null)) {
+                        continue;
+                    }
+                    fraction = f;
+                    best = new int[] { a, b, c };
+                }
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        List<Constraint[]> boxes = new ArrayList<Constraint[]>();
+        for (Constraint[] a : options.get(0).get(best[0])) {
+            for (Constraint[] b : options.get(1).get(best[1])) {
+                for (Constraint[] c : options.get(2).get(best[2])) {
+                    Constraint[] box = new Constraint[a.length + b.length + c.length];
+                    System.arraycopy(a, 0, box, 0, a.length);
+                    System.arraycopy(b, 0, box, a.length, b.length);
+                    System.arraycopy(c, 0, box, a.length + b.length, c.length);
+                    boxes.add(box);
+                }
+            }
+        }
+        if (!powerOfTwo) {
+            // Seeds that hit the nextInt() rejection loop. The first time it can happen is at one of
+            // the three nextInt(p2) calls, before anything has been shifted.
+            long rejectStart = ((1L << 31) - (1L << 31) % p2) << 17;
+            for (int slot = 0; slot < 3; ++slot) {
+                boxes.add(new Constraint[] { new Constraint(2 * slot + 2, rejectStart, MODULUS - 1) });
+            }
+        }
+
+        Map<String, Shape> shapes = new HashMap<String, Shape>();
+        try {
+            for (Constraint[] box : boxes) {
+                String key = shapeKey(box);
+                if (!shapes.containsKey(key)) {
+                    int[] outputs = new int[box.length];
+                    long[] widths = new long[box.length + 1];
+                    widths[0] = 1L << log2BlockSize;
+                    for (int j = 0; j < box.length; ++j) {
+                        outputs[j] = box[j].output;
+                        widths[j + 1] = box[j].hi - box[j].lo + 1;
+                    }
+                    shapes.put(key, new Shape(outputs, widths));
+                }
+            }
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        return new LcgSolver(observation, log2BlockSize, boxes, shapes, fraction);
+    }
+
+    private static String shapeKey(Constraint[] box) {
+        StringBuilder builder = new StringBuilder();
+        for (Constraint constraint : box) {
+            builder.append(constraint.output).append(':').append(constraint.hi - constraint.lo).append(',');
+        }
+        return builder.toString();
+    }
+
+    /** The same level calculation as testLevelsFast(), given j = nextInt(8) + p1 + nextInt(p2). */
+    private static int slotLevel(int slot, int j, int power) {
+        int level;
+        if (slot == 0) {
+            level = j / 3;
+            return level < 1 ? 1 : level;
+        }
+        if (slot == 1) {
+            level = j * 2 / 3 + 1;
+            return level < 2 ? 0 : level;
+        }
+        level = power * 2;
+        if (level < j) {
+            level = j;
+        }
+        return level < 3 ? 0 : level;
+    }
+
+    /**
+     * Finds all the seeds in the block starting at start (which must be a multiple of the block size)
+     * that pass testLevelsFast(). They are left in found[0..foundLength), in increasing order.
+     */
+    public void solve(int start) {
+        foundLength = 0;
+        // Setting the seed xors the low 32 bits with a constant. An aligned block of seeds maps to
+        // an aligned block of scrambled values, which all share the same high bits.
+        long blockMask = (1L << log2BlockSize) - 1;
+        blockStart = ((start & 0xFFFFFFFFL) ^ SEED_XOR) & ~blockMask;
+        long base = blockStart + ((blockStart & 0x80000000L) != 0 ? HIGH_POSITIVE : HIGH_NEGATIVE);
+        for (Constraint[] box : boxes) {
+            Shape shape = shapes.get(shapeKey(box));
+            int dim = shape.dim;
+            lo[0] = 0;
+            hi[0] = blockMask;
+            for (int j = 1; j < dim; ++j) {
+                Constraint constraint = box[j - 1];
+                int output = constraint.output;
+                long offset = (OUT_MUL[output] * base + OUT_ADD[output]) & FastRandom.MASK;
+                lo[j] = constraint.lo - offset;
+                hi[j] = constraint.hi - offset;
+            }
+            // The center of the box, in Gram-Schmidt coordinates. After scaling, the box is a unit
+            // cube, so it fits inside a ball of radius^2 = dim / 4 around that.
+            for (int i = 0; i < dim; ++i) {
+                double dot = 0;
+                for (int c = 0; c < dim; ++c) {
+                    dot += (lo[c] * 0.5 + hi[c] * 0.5) * shape.scale[c] * shape.orthogonal[i][c];
+                }
+                target[i] = dot / shape.norms[i];
+            }
+            Arrays.fill(partial[dim], 0, dim, 0);
+            // Pad the radius a little, so rounding can't make us miss anything. The innermost level
+            // is exact, so this only costs a tiny bit of extra searching.
+            enumerate(shape, dim - 1, dim * 0.25 * (1 + 1e-9) + 1e-9);
+        }
+        // Read the hits back out in order, and do the full check on them.
+        int seedBase = start & ~(int) blockMask;
+        for (int word = 0; word < hits.length; ++word) {
+            long bits = hits[word];
+            if (bits == 0) {
+                continue;
+            }
+            hits[word] = 0;
+            do {
+                int seed = seedBase + (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (SeedSolver.testLevelsFast(rand, seed, observation)) {
+                    if (foundLength >= found.length) {
+                        found = Arrays.copyOf(found, found.length << 1);
+                    }
+                    found[foundLength++] = seed;
+                }
+            } while (bits != 0);
+        }
+    }
+
+    private void enumerate(Shape shape, int level, double remaining) {
+        final int dim = shape.dim;
+        final long[][] basis = shape.basis;
+        final long[] above = partial[level + 1];
+        if (level == 0) {
+            // Innermost level: Instead of the ellipsoid bound, solve exactly for the range of the
+            // last coefficient that keeps every coordinate inside the box.
+            long[] vector = basis[0];
+            long min = Long.MIN_VALUE;
+            long max = Long.MAX_VALUE;
+            for (int c = 0; c < dim; ++c) {
+                long v = vector[c];
+                long low = lo[c] - above[c];
+                long high = hi[c] - above[c];
+                if (v == 0) {
+                    if (low > 0 || high < 0) {
+                        return;
+                    }
+                    continue;
+                }
+                if (v < 0) {
+                    v = -v;
+                    long temp = -low;
+                    low = -high;
+                    high = temp;
+                }
+                min = Math.max(min, Math.floorDiv(low + v - 1, v));
+                max = Math.min(max, Math.floorDiv(high, v));
+            }
+            for (long z = min; z <= max; ++z) {
+                emit(above[0] + z * vector[0]);
+            }
+            return;
+        }
+        double center = target[level];
+        for (int j = level + 1; j < dim; ++j) {
+            center -= shape.mu[j][level] * coeffs[j];
+        }
+        double spread = Math.sqrt(remaining / shape.norms[level]);
+        long first = (long) Math.ceil(center - spread);
+        long last = (long) Math.floor(center + spread);
+        long[] vector = basis[level];
+        long[] next = partial[level];
+        for (long z = first; z <= last; ++z) {
+            double diff = z - center;
+            double left = remaining - diff * diff * shape.norms[level];
+            if (left < 0) {
+                continue;
+            }
+            coeffs[level] = z;
+            for (int c = 0; c < dim; ++c) {
+                next[c] = above[c] + z * vector[c];
+            }
+            enumerate(shape, level - 1, left);
+        }
+    }
+
+    private void emit(long offset) {
+        int index = (int) ((blockStart + offset) ^ SEED_XOR) & (hits.length * 64 - 1);
+        hits[index >>> 6] |= 1L << index;
+    }
+}
@@ -0,0 +1,146 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+/**
+ * Batched version of {@link SeedSolver#testLevelsFast}, for testing a block of consecutive
+ * seeds at once.
+ *
+ * The seeds are run through the level check one slot at a time, in structure-of-arrays form: Each
+ * stage is a straight loop over lanes with no calls and no data-dependent control flow, so the JIT
+ * can unroll and pipeline it. After every stage the surviving lanes are compacted, so later slots
+ * only look at the few seeds that are still alive. Since slot 0 rejects most seeds, this is where
+ * nearly all of the time goes.
+ *
+ * The only thing that doesn't fit in a lane is the rejection loop inside nextInt() for
+ * non-power-of-two bounds, which fires for a handful of seeds out of 2^32. Those lanes are marked
+ * and re-checked with the scalar version at the end.
+ *
+ * Instances hold scratch space, so they aren't thread-safe.
+ */
+public class LevelFilter {
+    /** The number of seeds processed per pass. Blocks passed to filter() can be any size. */
+    static final int LANES = 256;
+    // Marks a lane that hit the nextInt() rejection loop. Valid LCG states are only 48 bits.
+    private static final long SCALAR = -1L;
+
+    private final Observation observation;
+    private final int[] levels;
+    private final int p1;
+    private final int p2;
+    private final int power2;
+    private final boolean powerOfTwo;
+
+    private final int[] seeds = new int[LANES];
+    private final long[] states = new long[LANES];
+    private final FastRandom scalar = new FastRandom();
+
+    public LevelFilter(Observation observation) {
+        this.observation = observation;
+        levels = observation.levels;
+        int power = observation.power;
+        if (power > 15) {
+            power = 15;
+        }
+        p1 = 1 + (power >> 1);
+        p2 = power + 1;
+        power2 = power * 2;
+        powerOfTwo = (p2 & (p2 - 1)) == 0;
+    }
+
+    /**
+     * Tests the seeds in [start, start + count), and writes the ones that pass into out (in
+     * increasing order, starting at index 0). Returns the number of seeds that passed. The range is
+     * allowed to wrap around from Integer.MAX_VALUE to Integer.MIN_VALUE.
+     */
+    public int filter(int start, int count, int[] out) {
+        int found = 0;
+        for (int done = 0; done < count; done += LANES) {
+            int lanes = Math.min(LANES, count - done);
+            found += filterBlock(start + done, lanes, out, found);
+        }
+        return found;
+    }
+
+    private int filterBlock(int start, int lanes, int[] out, int outOffset) {
+        final int[] seeds = this.seeds;
+        final long[] states = this.states;
+        for (int k = 0; k < lanes; ++k) {
+            seeds[k] = start + k;
+            states[k] = FastRandom.scramble(start + k);
+        }
+        int alive = lanes;
+        for (int slot = 0; slot < 3 && alive > 0; ++slot) {
+            alive = stage(slot, alive);
+        }
+        int found = 0;
+        for (int k = 0; k < alive; ++k) {
+            int seed = seeds[k];
+            if (states[k] == SCALAR && !SeedSolver.testLevelsFast(scalar, seed, observation)) {
+                continue;
+            }
+            out[outOffset + found++] = seed;
+        }
+        return found;
+    }
+
+    /** Runs the level check for one slot over the first alive lanes, and compacts the survivors. */
+    private int stage(int slot, int alive) {
+        final int[] seeds = this.seeds;
+        final long[] states = this.states;
+        final int target = levels[slot];
+        final int p1 = this.p1;
+        final int p2 = this.p2;
+        int kept = 0;
+        for (int k = 0; k < alive; ++k) {
+            long state = states[k];
+            long first = FastRandom.step(state);
+            long second = FastRandom.step(first);
+            int u = (int) (second >>> 17);
+            int r;
+            boolean rejected = false;
+            if (powerOfTwo) {
+                r = (int) ((p2 * (long) u) >> 31);
+            } else {
+                r = u % p2;
+                rejected = u - r + (p2 - 1) < 0;
+            }
+            int j = (int) (first >>> 45) + p1 + r;
+            int level;
+            if (slot == 0) {
+                level = j / 3;
+                if (level < 1) {
+                    level = 1;
+                }
+            } else if (slot == 1) {
+                level = j * 2 / 3 + 1;
+                if (level < 2) {
+                    level = 0;
+                }
+            } else {
+                level = power2 < j ? j : power2;
+                if (level < 3) {
+                    level = 0;
+                }
+            }
+            boolean scalarLane = state == SCALAR || rejected;
+            // Branch-free compaction: Always write, only advance on a pass.
+            seeds[kept] = seeds[k];
+            states[kept] = scalarLane ? SCALAR : second;
+            kept += (scalarLane || level == target) ? 1 : 0;
+        }
+        return kept;
+    }
+}
@@ -14,11 +14,16 @@
 
 package io.github.d0sboots.enchantmentrevealer;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -26,13 +31,19 @@ import net.minecraft.enchantment.Enchantment;
 import net.minecraft.enchantment.EnchantmentHelper;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
+import net.minecraft.util.ResourceLocation;
 import net.minecraft.util.registry.IRegistry;
+import net.minecraftforge.registries.ForgeRegistries;
 
 /**
  * Represents a single set of observed information gleaned from the vanilla enchanting process.
  */
 public class Observation {
     private static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ");
+    // What toString() produces. The enchant names are translated, so they're skipped over.
+    private static final Pattern PATTERN = Pattern.compile("Observation\\(seed: 0x([0-9A-Fa-f]+), power: (-?\\d+), "
+            + "enchants: \\[(.*)\\], levels: \\[(\\d+), (\\d+), (\\d+)\\], item: \\d+x(\\S+), tick: (-?\\d+), ");
+    private static final Pattern ENCHANT_PATTERN = Pattern.compile("-1|\"[^\"]*\" \\(0x([0-9A-Fa-f]+) (-?\\d+)\\)");
 
     /**
      * Truncated enchanting RNG seed. Minecraft masks the lower four bits, as well. If power ==
@@ -75,6 +86,24 @@ public class Observation {
     @SuppressWarnings("deprecation")
     static int getEnchantmentID(Enchantment enchantment) { return IRegistry.field_212628_q.getId(enchantment); }
 
+    /**
+     * The item's registry name, as in "minecraft:book". Unlike the numeric ID, this stays the same
+     * from one game (and modpack) to the next, so it's what gets saved.
+     */
+    static String getItemName(Item item) { return item.getRegistryName().toString(); }
+
+    /** The reverse of getItemName(). Returns null if there's no such item. */
+    @Nullable
+    static Item getItemByName(String name) {
+        ResourceLocation location;
+        try {
+            location = new ResourceLocation(name);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return ForgeRegistries.ITEMS.containsKey(location) ? ForgeRegistries.ITEMS.getValue(location) : null;
+    }
+
     public boolean hasEnchants() { return item != null && levels[0] != 0; }
 
     public boolean isUnenchantable() { return levels[0] == 0 && levels[1] == 0 && levels[2] == 0; }
@@ -86,6 +115,85 @@ public class Observation {
         System.arraycopy(other.enchantLevels, 0, enchantLevels, 0, 3);
     }
 
+    /**
+     * Writes everything except the item's NBT data, which doesn't affect the enchantments offered.
+     * Not meant for reset observations, since it drops the enchantments they carry.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeShort(truncatedSeed);
+        out.writeInt(power);
+        for (int i = 0; i < 3; ++i) {
+            out.writeInt(levels[i]);
+            out.writeInt(enchants[i]);
+            out.writeInt(enchantLevels[i]);
+        }
+        out.writeLong(now);
+        out.writeLong(tick);
+        out.writeUTF(item == null ? "" : getItemName(item.getItem()));
+    }
+
+    public static Observation read(DataInput in) throws IOException {
+        Observation observation = new Observation();
+        observation.truncatedSeed = in.readShort();
+        observation.power = in.readInt();
+        for (int i = 0; i < 3; ++i) {
+            observation.levels[i] = in.readInt();
+            observation.enchants[i] = in.readInt();
+            observation.enchantLevels[i] = in.readInt();
+        }
+        observation.now = in.readLong();
+        observation.tick = in.readLong();
+        String itemName = in.readUTF();
+        if (!itemName.isEmpty()) {
+            Item item = getItemByName(itemName);
+            if (item == null) {
+                throw new IOException("Unknown item " + itemName);
+            }
+            observation.item = new ItemStack(item);
+        }
+        return observation;
+    }
+
+    /**
+     * The reverse of toString(), for observations with enchants. Anything before "Observation(" is
+     * skipped, so lines can be taken straight from a log. The time isn't read back.
+     *
+     * @throws IllegalArgumentException if the observation can't be parsed
+     */
+    public static Observation parse(String line) {
+        int start = line.indexOf("Observation(");
+        Matcher matcher = PATTERN.matcher(line);
+        if (start < 0 || !matcher.find(start) || matcher.start() != start) {
+            throw new IllegalArgumentException("Not an observation: " + line);
+        }
+        Observation observation = new Observation();
+        observation.truncatedSeed = (short) Integer.parseInt(matcher.group(1), 16);
+        observation.power = Integer.parseInt(matcher.group(2));
+        Matcher enchant = ENCHANT_PATTERN.matcher(matcher.group(3));
+        for (int i = 0; i < 3; ++i) {
+            if (!enchant.find()) {
+                throw new IllegalArgumentException("Not enough enchants in: " + line);
+            }
+            if (enchant.group(1) != null) {
+                observation.enchants[i] = Integer.parseInt(enchant.group(1), 16);
+                observation.enchantLevels[i] = Integer.parseInt(enchant.group(2));
+            }
+            observation.levels[i] = Integer.parseInt(matcher.group(4 + i));
+        }
+        String key = matcher.group(7);
+        for (Item item : ForgeRegistries.ITEMS) {
+            if (item.getTranslationKey().equals(key)) {
+                observation.item = new ItemStack(item);
+                break;
+            }
+        }
+        if (observation.item == null) {
+            throw new IllegalArgumentException("Unknown item " + key + " in: " + line);
+        }
+        observation.tick = Long.parseLong(matcher.group(8));
+        return observation;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
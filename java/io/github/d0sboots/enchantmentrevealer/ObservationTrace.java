@@ -0,0 +1,293 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.enchantment.Enchantment;
+import net.minecraft.enchantment.EnchantmentHelper;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraftforge.fml.loading.FMLPaths;
+
+/**
+ * A recording of every observation the worker was sent, in order, for replaying with TraceReplay.
+ *
+ * The file is a header (magic and version), then one record per observation until the end of the
+ * file. Records are written as they happen and flushed, so a crash loses at most the last one, and
+ * a cut-off record at the end is ignored when reading. Most fields are small, so they're varints,
+ * zigzagged where they can be negative; now is stored as the difference from the previous record.
+ * The item is its registry name. Reset observations also carry the enchantments on the item, since
+ * that's what gets checked against the candidates.
+ *
+ * record() is called on the client thread, so it only encodes the record, and the file is written
+ * on a thread of the trace's own. A slow disk can't hold up the game, or the worker.
+ */
+public class ObservationTrace {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x45525452; // "ERTR"
+    // Bump this whenever the record format changes.
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 12;
+
+    private final Path file;
+    // Writes the file. Started with the first record.
+    @GuardedBy("this")
+    @Nullable
+    private ExecutorService writer;
+    @GuardedBy("this")
+    private long lastNow;
+    @GuardedBy("this")
+    private boolean closed;
+
+    // These are only accessed from the writer thread.
+    @Nullable
+    private DataOutputStream out;
+    // Set when a write fails, so that a full disk doesn't log on every observation.
+    private boolean failed;
+
+    public ObservationTrace(Path file) { this.file = file; }
+
+    /** A new trace file for this session, named after when it started. */
+    public static ObservationTrace forNewSession() {
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".trace";
+        return new ObservationTrace(
+                FMLPaths.GAMEDIR.get().resolve(EnchantmentRevealer.MODID).resolve("traces").resolve(name));
+    }
+
+    public Path getFile() { return file; }
+
+    /**
+     * Appends the observation. It's encoded right away, while the item is as observed, and written
+     * out later. The file is created on the first one. Ignored after close().
+     */
+    public synchronized void record(Observation observation) {
+        if (closed) {
+            return;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        try {
+            lastNow = write(new DataOutputStream(record), observation, lastNow);
+        } catch (IOException e) {
+            throw new AssertionError("Writing to memory can't fail", e);
+        }
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ObservationTrace");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        writer.execute(() -> append(record));
+    }
+
+    /** Closes the file once everything recorded so far has been written. Doesn't wait for that. */
+    public synchronized void close() {
+        closed = true;
+        if (writer != null) {
+            writer.execute(this::closeFile);
+            writer.shutdown();
+        }
+    }
+
+    /** Waits for close() to finish writing. Returns false if it timed out. */
+    // Visible for testing
+    boolean awaitClosed(long timeout, TimeUnit unit) throws InterruptedException {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = writer;
+        }
+        return executor == null || executor.awaitTermination(timeout, unit);
+    }
+
+    private void append(ByteArrayOutputStream record) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (out == null) {
+                Files.createDirectories(file.getParent());
+                out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                LOGGER.info("Recording observations to {}", file);
+            }
+            record.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't record to trace {}, giving up on it: {}", file, e);
+            failed = true;
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't close trace {}: {}", file, e);
+        }
+        out = null;
+    }
+
+    /** Reads a whole trace. A record cut off at the end is dropped. */
+    public static List<Observation> read(Path file) throws IOException {
+        List<Observation> observations = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a trace: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version + ": " + file);
+            }
+            long lastNow = 0;
+            while (true) {
+                int high = in.read();
+                if (high < 0) {
+                    break;
+                }
+                Observation observation;
+                try {
+                    observation = read(in, (short) (high << 8 | in.readUnsignedByte()), lastNow);
+                } catch (EOFException e) {
+                    LOGGER.warn("Trace {} was cut off after {} observations", file, observations.size());
+                    break;
+                }
+                lastNow = observation.now;
+                observations.add(observation);
+            }
+        }
+        return observations;
+    }
+
+    /** Returns the observation's time, which the next record is relative to. */
+    private static long write(DataOutput out, Observation observation, long lastNow) throws IOException {
+        out.writeShort(observation.truncatedSeed);
+        writeVarint(out, zigzag(observation.power));
+        for (int i = 0; i < 3; ++i) {
+            writeVarint(out, observation.levels[i]);
+            writeVarint(out, zigzag(observation.enchants[i]));
+            writeVarint(out, zigzag(observation.enchantLevels[i]));
+        }
+        writeVarint(out, zigzag(observation.tick));
+        writeVarint(out, zigzag(observation.now - lastNow));
+        ItemStack item = observation.item;
+        out.writeUTF(item == null ? "" : Observation.getItemName(item.getItem()));
+        if (observation.power == Observation.RESET_POWER) {
+            Map<Enchantment, Integer> enchantMap =
+                    item == null ? new LinkedHashMap<>() : EnchantmentHelper.getEnchantments(item);
+            writeVarint(out, enchantMap.size());
+            for (Entry<Enchantment, Integer> entry : enchantMap.entrySet()) {
+                writeVarint(out, Observation.getEnchantmentID(entry.getKey()));
+                writeVarint(out, zigzag(entry.getValue()));
+            }
+        }
+        return observation.now;
+    }
+
+    // The first two bytes (the seed) have already been read, to spot the end of the file.
+    private static Observation read(DataInput in, short truncatedSeed, long lastNow) throws IOException {
+        Observation observation = new Observation();
+        observation.truncatedSeed = truncatedSeed;
+        observation.power = (int) unzigzag(readVarint(in));
+        for (int i = 0; i < 3; ++i) {
+            observation.levels[i] = (int) readVarint(in);
+            observation.enchants[i] = (int) unzigzag(readVarint(in));
+            observation.enchantLevels[i] = (int) unzigzag(readVarint(in));
+        }
+        observation.tick = unzigzag(readVarint(in));
+        observation.now = lastNow + unzigzag(readVarint(in));
+        String itemName = in.readUTF();
+        if (!itemName.isEmpty()) {
+            Item item = Observation.getItemByName(itemName);
+            if (item == null) {
+                throw new IOException("Unknown item " + itemName);
+            }
+            observation.item = new ItemStack(item);
+        }
+        if (observation.power == Observation.RESET_POWER) {
+            int size = (int) readVarint(in);
+            Map<Enchantment, Integer> enchantMap = new LinkedHashMap<>();
+            for (int i = 0; i < size; ++i) {
+                int id = (int) readVarint(in);
+                Enchantment enchantment = Enchantment.getEnchantmentByID(id);
+                if (enchantment == null) {
+                    throw new IOException("Unknown enchantment id " + id);
+                }
+                enchantMap.put(enchantment, (int) unzigzag(readVarint(in)));
+            }
+            if (observation.item != null && !enchantMap.isEmpty()) {
+                EnchantmentHelper.setEnchantments(enchantMap, observation.item);
+            }
+        }
+        return observation;
+    }
+
+    private static long zigzag(long value) { return value << 1 ^ value >> 63; }
+
+    private static long unzigzag(long value) { return value >>> 1 ^ -(value & 1); }
+
+    private static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,169 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the seed scans in parallel, on a ForkJoinPool.
+ *
+ * A scan is split into numbered chunks, and every chunk is submitted as its own task, so whichever
+ * pool thread is idle steals the next one. Only a bounded window of chunks is in flight at once,
+ * which keeps the memory held by finished-but-unconsumed results small. The results are handed
+ * back on the calling thread strictly in chunk order, so whatever the caller builds from them (the
+ * candidate list, in particular) comes out the same no matter how the work was scheduled.
+ *
+ * Scans can be cancelled: The token is checked before each chunk starts and after each one is
+ * consumed. Once it trips, the chunks that haven't started are skipped, but run() still waits for
+ * the ones already running to finish before it returns, so a cancelled scan takes about one chunk's
+ * worth of time to stop. After run() returns (however it returns), nothing from the scan is still
+ * touching the caller's data or holding a pool thread.
+ *
+ * One engine is meant to be shared by everything that scans, so run() can be called from several
+ * threads at once. Their chunks share the pool's threads.
+ */
+public class ScanEngine {
+    /**
+     * Scans a single chunk. This runs on a pool thread, with a context that nothing else is using
+     * at the same time. The result must not be null.
+     */
+    public interface Scanner<C, R> {
+        R scan(C context, int chunk);
+    }
+
+    /** Receives the result of each chunk, in chunk order, on the thread that called run(). */
+    public interface Sink<R> {
+        void accept(int chunk, R result);
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    // How many chunks to keep in flight, per thread. More than one, so that a slow chunk at the
+    // head of the window doesn't starve the other threads.
+    private static final int WINDOW_PER_THREAD = 4;
+
+    // Asked before every scan, so that a change to the setting takes effect on the next one.
+    private final IntSupplier threads;
+    @GuardedBy("this")
+    private ForkJoinPool pool;
+
+    /** threads supplies the number of threads to use, where zero or less means one per core. */
+    public ScanEngine(IntSupplier threads) { this.threads = threads; }
+
+    /** The number of threads to use, given the config value. Zero or less means one per core. */
+    static int getParallelism(int configured) {
+        return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+    }
+
+    // Under the lock, so that another run() changing the number of threads can't shut down the pool
+    // between getting it and submitting to it.
+    private synchronized <R> ForkJoinTask<R> submit(Callable<R> task) { return getPool().submit(task); }
+
+    private synchronized ForkJoinPool getPool() {
+        int parallelism = getParallelism(threads.getAsInt());
+        if (pool != null && pool.getParallelism() == parallelism) {
+            return pool;
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        LOGGER.debug("Starting scan pool with {} threads", parallelism);
+        pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("EnchantmentWorker-scan-" + thread.getPoolIndex());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }, null, false);
+        return pool;
+    }
+
+    /**
+     * Scans chunks [0, chunks), passing each result to the sink in order. Each chunk borrows a
+     * context from the ones this scan has made with contextFactory, and makes a new one only if
+     * they're all in use, so there's about one per pool thread. They're dropped when the scan ends.
+     * Returns false if the scan was cancelled before it finished.
+     */
+    public <C, R> boolean run(int chunks, BooleanSupplier cancelled, Supplier<C> contextFactory,
+            Scanner<C, R> scanner, Sink<R> sink) {
+        return run(0, chunks, cancelled, contextFactory, scanner, sink);
+    }
+
+    /** Like run(), but starts at chunk first, for resuming a scan that was interrupted. */
+    public <C, R> boolean run(int first, int chunks, final BooleanSupplier cancelled, final Supplier<C> contextFactory,
+            final Scanner<C, R> scanner, Sink<R> sink) {
+        int window = getPool().getParallelism() * WINDOW_PER_THREAD;
+        // Not a ThreadLocal, which would leave every pool thread holding on to this scan's contexts
+        // (and their buffers) long after it's over.
+        final ConcurrentLinkedQueue<C> contexts = new ConcurrentLinkedQueue<C>();
+        Deque<ForkJoinTask<R>> inFlight = new ArrayDeque<ForkJoinTask<R>>(window);
+        // Set when run() is on its way out, so that chunks that haven't started yet don't.
+        final AtomicBoolean stopped = new AtomicBoolean();
+        int submitted = first;
+        try {
+            for (int consumed = first; consumed < chunks; ++consumed) {
+                while (submitted < chunks && inFlight.size() < window) {
+                    final int chunk = submitted++;
+                    inFlight.add(submit(() -> {
+                        if (stopped.get() || cancelled.getAsBoolean()) {
+                            return null;
+                        }
+                        C context = contexts.poll();
+                        if (context == null) {
+                            context = contextFactory.get();
+                        }
+                        try {
+                            return scanner.scan(context, chunk);
+                        } finally {
+                            contexts.add(context);
+                        }
+                    }));
+                }
+                R result = inFlight.poll().join();
+                // A null result means the chunk saw the cancellation before starting.
+                if (result == null || cancelled.getAsBoolean()) {
+                    LOGGER.debug("Scan cancelled after {} of {} chunks", consumed, chunks);
+                    return false;
+                }
+                sink.accept(consumed, result);
+            }
+            return true;
+        } finally {
+            // Only non-empty if the scan was cancelled, or something threw. Cancelling a task
+            // doesn't stop it if it's already running, so they're all waited for instead, which is
+            // quick for the ones that haven't started.
+            stopped.set(true);
+            for (ForkJoinTask<R> task : inFlight) {
+                task.quietlyJoin();
+            }
+        }
+    }
+}
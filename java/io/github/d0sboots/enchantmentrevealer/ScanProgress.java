@@ -0,0 +1,47 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How far along the running scan is, as seeds done out of the total. The scan threads add to it as
+ * they finish each chunk, without taking any locks, and the GUI reads it when it draws. Nothing is
+ * allocated or formatted for progress until someone looks.
+ */
+public class ScanProgress {
+    private final LongAdder done = new LongAdder();
+    private volatile long total;
+
+    /** Starts over, for a scan of total seeds, of which alreadyDone were done before (on resume). */
+    void start(long total, long alreadyDone) {
+        // Zero the total first, so that a reader in between never sees the old count as progress.
+        this.total = 0;
+        done.reset();
+        done.add(alreadyDone);
+        this.total = total;
+    }
+
+    void add(long seeds) { done.add(seeds); }
+
+    /** From 0 to 100. Zero when no scan has started. */
+    public int getPercent() {
+        long total = this.total;
+        if (total <= 0) {
+            return 0;
+        }
+        return (int) Math.min(100, done.sum() * 100 / total);
+    }
+}
@@ -0,0 +1,961 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.enchantment.Enchantment;
+import net.minecraft.enchantment.EnchantmentData;
+import net.minecraft.enchantment.EnchantmentHelper;
+import net.minecraft.init.Items;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.math.MathHelper;
+
+/**
+ * The seed search itself: The filters, the candidate set and the tallies, with nothing tied to the
+ * client. EnchantmentWorker drives one of these from the GUI, and SolverMain from the command
+ * line. The Minecraft registries still have to be bootstrapped, since that's where the items and
+ * enchantments come from.
+ *
+ * Not thread-safe: Everything runs on the thread that calls in, except for the scans themselves,
+ * which fan out over the ScanEngine.
+ */
+public class SeedSolver {
+    /**
+     * Hears about each chunk of a scan, on the thread that called solve(). For how far along the
+     * scan is, there's getScanProgress(), which can be read from anywhere.
+     */
+    public interface Listener {
+        /**
+         * Called after each chunk of a scan has been added in. During a full scan, getProgress() has
+         * where it could be resumed from.
+         */
+        void onChunk(Observation observation);
+
+        /**
+         * Called before a long scan starts, with what a quick random sample of it found. The exact
+         * results follow once the scan is done.
+         */
+        default void onEstimate(Observation observation, Estimate estimate) {}
+    }
+
+    /** How much to trust the server's seed hint, as in the useSeedHint option. */
+    public enum HintMode {
+        ALWAYS, NEVER, SOMETIMES;
+
+        /** Anything that isn't "always" or "never" means sometimes. */
+        public static HintMode parse(String value) {
+            if (value.equalsIgnoreCase("always")) {
+                return ALWAYS;
+            }
+            return value.equalsIgnoreCase("never") ? NEVER : SOMETIMES;
+        }
+    }
+
+    /** What came of solve(). The errors are named after the messages EnchantmentWorker shows. */
+    public enum Outcome {
+        SOLVED, CANCELLED, UNENCHANTABLE, SEED_MISMATCH, EXHAUSTED
+    }
+
+    /**
+     * The result of scanning one chunk: The seeds that passed, in increasing order, and the tally of
+     * their enchants. Tallying on the scan thread keeps the per-seed enchant lists from piling up.
+     */
+    private static class Hits {
+        int[] seeds = new int[16];
+        int length;
+        // For SolverMetrics: How many seeds the chunk covered, and how many got past the levels.
+        int scanned;
+        int levelsPassed;
+        final EnchantTally tally = new EnchantTally();
+
+        void add(int seed, EnchantTable table, EnchantTable.Picks picks) {
+            if (length >= seeds.length) {
+                seeds = Arrays.copyOf(seeds, seeds.length << 1);
+            }
+            seeds[length++] = seed;
+            tally.add(table, picks);
+        }
+    }
+
+    /** How far a full scan has gotten, so that it can be picked back up after a restart. */
+    public static class Checkpoint {
+        // How many observations the scan was matching: Either just the current one, or (for the
+        // fallback) every one with enchants.
+        final int scanObservations;
+        final int log2BatchSize;
+        int nextChunk;
+
+        public Checkpoint(int scanObservations, int log2BatchSize, int nextChunk) {
+            this.scanObservations = scanObservations;
+            this.log2BatchSize = log2BatchSize;
+            this.nextChunk = nextChunk;
+        }
+    }
+
+    /**
+     * What a random sample of a scan found: The matching seeds, and the tally of their enchants.
+     * The sample is of whole chunks, which are spread evenly over what the scan covers, so the
+     * matches scale up to an estimate of the candidates.
+     */
+    public static class Estimate {
+        public final EnchantTally tally = new EnchantTally();
+        // Read by the pool threads, to know when to stop sampling.
+        private final AtomicLong matches = new AtomicLong();
+        public long sampledSeeds;
+        public final long totalSeeds;
+
+        Estimate(long totalSeeds) { this.totalSeeds = totalSeeds; }
+
+        void add(Hits hits) {
+            tally.addAll(hits.tally);
+            matches.addAndGet(hits.length);
+            sampledSeeds += hits.scanned;
+        }
+
+        public long getMatches() { return matches.get(); }
+
+        /** The estimated number of candidates the whole scan will find. */
+        public long getCandidates() { return Math.round((double) matches.get() * totalSeeds / sampledSeeds); }
+    }
+
+    /** Per-thread scratch space for the scans. Which fields are used depends on the scan. */
+    private static class ScanContext {
+        final FastRandom fastRand = FastRandom.create();
+        final EnchantTable.Picks picks = new EnchantTable.Picks();
+        final EnchantTable.Picks scratchPicks = new EnchantTable.Picks();
+        LcgSolver solver;
+        LevelFilter levelFilter;
+        int[] survivors;
+    }
+
+    /**
+     * An observation, with everything the fast kernels need looked up once, so that testing a seed
+     * against it takes no registry lookups or allocation. Every scan goes through one of these.
+     */
+    private static class ObservationFilter {
+        final Observation observation;
+        final EnchantTable table;
+
+        ObservationFilter(Observation observation) {
+            this.observation = observation;
+            table = EnchantTableCache.get(observation.item);
+        }
+
+        boolean testLevels(FastRandom rand, int seed) { return testLevelsFast(rand, seed, observation); }
+
+        boolean testSlot(FastRandom rand, int seed, EnchantTable.Picks picks, int slot) {
+            return testEnchantFast(rand, seed, observation, table, picks, slot);
+        }
+
+        /** The same as testEnchants(), with the rolled enchants going in picks. */
+        boolean testEnchants(FastRandom rand, int seed, EnchantTable.Picks picks) {
+            for (int slot = 0; slot < 3; ++slot) {
+                if (!testSlot(rand, seed, picks, slot)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** One observation's part of the per-seed test in doInitialFull(). */
+    private static class FullScanTest {
+        final ObservationFilter filter;
+        final Observation observation;
+        // The current observation's enchants get tallied, so they go in a buffer that the other
+        // tests don't overwrite.
+        final boolean tallied;
+        // The order to test the slots in. They all have to pass, so this only changes how quickly a
+        // seed gets rejected. Slot 2 has the most possible enchants, so it's the default first.
+        final int[] slotOrder = { 2, 1, 0 };
+        // False for the observation driving the scan, since its levels were already checked.
+        boolean checkLevels = true;
+        // How many seeds passed, when trying it out in orderFullScanTests().
+        int sampled;
+
+        FullScanTest(Observation observation, boolean tallied) {
+            filter = new ObservationFilter(observation);
+            this.observation = observation;
+            this.tallied = tallied;
+        }
+
+        boolean test(ScanContext context, int seed) {
+            FastRandom rng = context.fastRand;
+            if (checkLevels && !filter.testLevels(rng, seed)) {
+                return false;
+            }
+            for (int slot : slotOrder) {
+                if (!testSlot(context, seed, slot)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean testSlot(ScanContext context, int seed, int slot) {
+            return filter.testSlot(context.fastRand, seed, tallied ? context.picks : context.scratchPicks, slot);
+        }
+
+        /**
+         * Runs the test on the sample seeds, to fill in sampled and re-order the slots. Each slot is
+         * tried on every seed that gets past the levels, so their rejection rates can be compared.
+         */
+        void sample(ScanContext context, int[] seeds, int length) {
+            int[] slotPassed = new int[3];
+            sampled = 0;
+            for (int k = 0; k < length; ++k) {
+                int seed = seeds[k];
+                if (checkLevels && !filter.testLevels(context.fastRand, seed)) {
+                    continue;
+                }
+                boolean passed = true;
+                for (int slot = 0; slot < 3; ++slot) {
+                    if (testSlot(context, seed, slot)) {
+                        slotPassed[slot]++;
+                    } else {
+                        passed = false;
+                    }
+                }
+                if (passed) {
+                    sampled++;
+                }
+            }
+            // Insertion sort, stable so that ties keep the default order.
+            for (int i = 1; i < 3; ++i) {
+                int slot = slotOrder[i];
+                int j = i;
+                for (; j > 0 && slotPassed[slotOrder[j - 1]] > slotPassed[slot]; --j) {
+                    slotOrder[j] = slotOrder[j - 1];
+                }
+                slotOrder[j] = slot;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    // The number of values of the high 16 bits in a chunk of doInitial(), which is 16 seeds each.
+    // Chunks cost next to nothing on top of their seeds, so these are small, to keep every thread
+    // busy until the end.
+    private static final int BATCH_SIZE = 256;
+    // log2 of the batch size used by doInitialFull() when it scans linearly. Changing it makes
+    // checkpoints from before the change start over.
+    private static final int LOG2_FULL_BATCH_SIZE = 14;
+    // log2 of the batch size used by doInitialFull() when it can use LcgSolver. The solver has a
+    // fixed cost per batch, so it needs much bigger batches than the linear scan.
+    private static final int LOG2_SOLVER_BATCH_SIZE = 20;
+    // Scans of fewer seeds than this are over too quickly for an estimate to be worth it. That
+    // includes the hinted scan, which is only 2^20 seeds.
+    private static final long ESTIMATE_MIN_SEEDS = 1 << 24;
+    // An estimate stops at whichever of these comes first.
+    private static final long ESTIMATE_NANOS = 50_000_000L;
+    private static final int ESTIMATE_MATCHES = 2000;
+    private static final int ESTIMATE_MAX_CHUNKS = 4096;
+
+    // The possible seed candidates, in increasing (unsigned) order.
+    final CandidateSet candidates = new CandidateSet();
+    final EnchantTally tallies = new EnchantTally();
+    private final ScanEngine scanEngine;
+    private final Listener listener;
+    private final ScanProgress scanProgress = new ScanProgress();
+    private final SolverMetrics metrics = SolverMetrics.INSTANCE;
+    // For isEnchantConsistent(), which runs on the calling thread.
+    private final FastRandom rand = FastRandom.create();
+    private final EnchantTable.Picks picks = new EnchantTable.Picks();
+    // Are we re-doing the calculations assuming bad seed data?
+    private boolean didFallback = false;
+    // How far the running full scan has gotten.
+    @Nullable
+    private Checkpoint progress;
+    // The scan phase in progress, for SolverMetrics and FlightEvents.
+    private long phaseStart;
+    private long phaseSeeds;
+    private FlightEvents.Scan phaseEvent;
+    // Visible for testing: Full scans only cover the lowest 1/2^log2Fraction of the seed space, so
+    // that solve() can be run on them in reasonable time.
+    int log2Fraction;
+
+    public SeedSolver(ScanEngine scanEngine, Listener listener) {
+        this.scanEngine = scanEngine;
+        this.listener = listener;
+    }
+
+    public CandidateSet getCandidates() { return candidates; }
+
+    public EnchantTally getTallies() { return tallies; }
+
+    public boolean didFallback() { return didFallback; }
+
+    public void setDidFallback(boolean value) { didFallback = value; }
+
+    /** How far the scan in progress has gotten. Safe to read from any thread. */
+    public ScanProgress getScanProgress() { return scanProgress; }
+
+    /** Where the full scan in progress (or the last one that didn't finish) could be resumed from. */
+    @Nullable
+    public Checkpoint getProgress() { return progress; }
+
+    /** Forgets everything, for a new seed. */
+    public void clear() {
+        candidates.clear();
+        tallies.clear();
+        didFallback = false;
+        progress = null;
+        metrics.recordCandidates(candidates);
+    }
+
+    /**
+     * Narrows the candidates down with the last of the observations, which must have enchants. The
+     * earlier ones are everything already solved for, since the last reset. If resuming from a
+     * checkpoint, the candidates and tallies must be the ones that were saved with it. Afterwards,
+     * the tallies are for the last observation.
+     *
+     * On anything but SOLVED, the candidates and tallies are left as they were when it stopped,
+     * which for CANCELLED is partway through a scan.
+     */
+    public Outcome solve(List<Observation> observations, @Nullable Checkpoint checkpoint, HintMode hintMode,
+            BooleanSupplier cancelled) {
+        Observation observation = observations.get(observations.size() - 1);
+        if (!observation.isUnenchantable()
+                && (observation.item == null || observation.item.getItemEnchantability() == 0)) {
+            return Outcome.UNENCHANTABLE;
+        }
+        if (checkpoint == null) {
+            tallies.clear();
+        }
+        Observation prevObservation = null;
+        for (int i = observations.size() - 2; i >= 0; --i) {
+            Observation o = observations.get(i);
+            if (o.hasEnchants()) {
+                prevObservation = o;
+                break;
+            }
+        }
+        if (prevObservation != null && prevObservation.truncatedSeed != observation.truncatedSeed) {
+            return Outcome.SEED_MISMATCH;
+        }
+        boolean finished;
+        if (checkpoint != null) {
+            List<Observation> scanObservations = checkpoint.scanObservations == 1
+                    ? Collections.singletonList(observation) : getEnchantObservations(observations);
+            finished = doInitialFull(scanObservations, checkpoint, cancelled);
+        } else if (candidates.isEmpty()) {
+            if (didFallback || hintMode == HintMode.NEVER) {
+                finished = doInitialFull(Collections.singletonList(observation), null, cancelled);
+            } else {
+                finished = doInitial(observation, cancelled);
+            }
+        } else {
+            finished = refine(observation, cancelled);
+        }
+        if (!finished) {
+            return Outcome.CANCELLED;
+        }
+
+        if (candidates.isEmpty()) {
+            if (didFallback || hintMode == HintMode.ALWAYS) {
+                return Outcome.EXHAUSTED;
+            }
+
+            LOGGER.info("Exhausted all possibilities, trying again while ignoring xpSeed");
+            didFallback = true;
+            FlightEvents.fallback(observation, observations.size());
+            // Re-do everything we've seen in one pass over the whole space, keeping only the
+            // seeds that match all of it. This is much cheaper than building the full list
+            // for the first observation and then refining it down.
+            tallies.clear();
+            if (!doInitialFull(getEnchantObservations(observations), null, cancelled)) {
+                return Outcome.CANCELLED;
+            }
+            if (candidates.isEmpty()) {
+                return Outcome.EXHAUSTED;
+            }
+        }
+        return Outcome.SOLVED;
+    }
+
+    private static List<Observation> getEnchantObservations(List<Observation> observations) {
+        List<Observation> result = new ArrayList<Observation>();
+        for (Observation o : observations) {
+            if (o.hasEnchants()) {
+                result.add(o);
+            }
+        }
+        return result;
+    }
+
+    private boolean doInitial(final Observation observation, BooleanSupplier cancelled) {
+        // The hint gives us bits 4-15, so there are 2^20 possibilities. Each chunk covers BATCH_SIZE
+        // values of the high 16 bits, in increasing order.
+        final int hint = observation.truncatedSeed & 0xFFF0;
+        final int chunks = (1 << 16) / BATCH_SIZE;
+        final ObservationFilter filter = new ObservationFilter(observation);
+        scanProgress.start(1 << 20, 0);
+        beginPhase(SolverMetrics.Phase.DO_INITIAL);
+        boolean finished = scanEngine.run(chunks, cancelled, ScanContext::new, (context, chunk) -> {
+            Hits hits = new Hits();
+            int limit = (chunk + 1) * BATCH_SIZE;
+            for (int high = chunk * BATCH_SIZE; high < limit; ++high) {
+                for (int j = 0; j < 16; ++j) {
+                    int merged = high << 16 | hint | j;
+                    if (!filter.testLevels(context.fastRand, merged)) {
+                        continue;
+                    }
+                    hits.levelsPassed++;
+                    if (filter.testEnchants(context.fastRand, merged, context.picks)) {
+                        hits.add(merged, filter.table, context.picks);
+                    }
+                }
+            }
+            hits.scanned = BATCH_SIZE * 16;
+            scanProgress.add(hits.scanned);
+            return hits;
+        }, (chunk, hits) -> {
+            addHits(hits);
+            listener.onChunk(observation);
+        });
+        endPhase(SolverMetrics.Phase.DO_INITIAL, observation, finished);
+        return finished;
+    }
+
+    /**
+     * Scan the entire space, for seeds that match every one of the given observations. The last one
+     * is the current observation, which is the one the enchants are tallied for. If resuming from a
+     * checkpoint, the candidates and tallies must be the ones that were saved with it.
+     */
+    private boolean doInitialFull(List<Observation> scanObservations, @Nullable Checkpoint checkpoint,
+            BooleanSupplier cancelled) {
+        return doInitialFull(scanObservations, checkpoint, log2Fraction, cancelled);
+    }
+
+    /**
+     * Visible for benchmarks: doInitialFull(), but only over the lowest 1/2^log2Fraction of the seed
+     * space, so that it finishes in reasonable time. The candidates must start out empty.
+     */
+    boolean doInitialFull(List<Observation> scanObservations, int log2Fraction) {
+        return doInitialFull(scanObservations, null, log2Fraction, () -> false);
+    }
+
+    private boolean doInitialFull(List<Observation> scanObservations, @Nullable Checkpoint checkpoint,
+            int log2Fraction, BooleanSupplier cancelled) {
+        final Observation observation = scanObservations.get(scanObservations.size() - 1);
+        final FullScanTest[] tests = new FullScanTest[scanObservations.size()];
+        for (int i = 0; i < tests.length; ++i) {
+            tests[i] = new FullScanTest(scanObservations.get(i), i == tests.length - 1);
+        }
+        final FullScanTest tallied = tests[tests.length - 1];
+        final FullScanTest driver = orderFullScanTests(tests);
+        final Observation driverObservation = driver.observation;
+        // If the levels pin down the seed well enough, solve for the seeds that match them instead
+        // of scanning the whole space.
+        final LcgSolver solver = LcgSolver.create(driverObservation, LOG2_SOLVER_BATCH_SIZE);
+        // Higher batch size, because of the larger space.
+        final int log2BatchSize = solver != null ? LOG2_SOLVER_BATCH_SIZE : LOG2_FULL_BATCH_SIZE;
+        if (solver != null) {
+            LOGGER.debug("Using LcgSolver, covering {} of the seed space", solver.getFraction());
+        }
+        // Chunks go through the space in increasing (unsigned) order, wrapping through the negatives.
+        final int chunks = 1 << (32 - log2BatchSize - log2Fraction);
+        int firstChunk = 0;
+        if (checkpoint != null) {
+            if (checkpoint.log2BatchSize == log2BatchSize && checkpoint.scanObservations == tests.length) {
+                firstChunk = checkpoint.nextChunk;
+                LOGGER.info("Resuming full scan at chunk {} of {}", firstChunk, chunks);
+            } else {
+                // Only possible if the scan strategy changed since the checkpoint was written.
+                LOGGER.info("Checkpoint doesn't match the scan, starting over");
+                candidates.clear();
+                tallies.clear();
+            }
+        }
+        final Supplier<ScanContext> contextFactory = () -> {
+            ScanContext context = new ScanContext();
+            if (solver != null) {
+                context.solver = solver.copy();
+            } else {
+                context.levelFilter = new LevelFilter(driverObservation);
+                context.survivors = new int[1 << log2BatchSize];
+            }
+            return context;
+        };
+        final ScanEngine.Scanner<ScanContext, Hits> scanner = (context, chunk) -> {
+            Hits hits = new Hits();
+            int start = chunk << log2BatchSize;
+
+            // The inner loop: Everything else can be slow, but this must be fast.
+            // The level check throws away almost everything, so it runs over the
+            // whole batch first, and only the survivors go on to the enchant tests.
+            int[] survivors;
+            int passed;
+            if (context.solver != null) {
+                context.solver.solve(start);
+                survivors = context.solver.found;
+                passed = context.solver.foundLength;
+            } else {
+                survivors = context.survivors;
+                passed = context.levelFilter.filter(start, 1 << log2BatchSize, survivors);
+            }
+            outer: for (int k = 0; k < passed; ++k) {
+                int seed = survivors[k];
+                for (FullScanTest test : tests) {
+                    if (!test.test(context, seed)) {
+                        continue outer;
+                    }
+                }
+                hits.add(seed, tallied.filter.table, context.picks);
+            }
+            hits.scanned = 1 << log2BatchSize;
+            hits.levelsPassed = passed;
+            return hits;
+        };
+        if (firstChunk == 0) {
+            estimate(observation, chunks, (long) chunks << log2BatchSize, contextFactory, scanner, cancelled);
+        }
+
+        progress = new Checkpoint(tests.length, log2BatchSize, firstChunk);
+        scanProgress.start((long) chunks << log2BatchSize, (long) firstChunk << log2BatchSize);
+        beginPhase(SolverMetrics.Phase.DO_INITIAL_FULL);
+        final ScanEngine.Sink<Hits> sink = (chunk, hits) -> {
+            addHits(hits);
+            progress.nextChunk = chunk + 1;
+            listener.onChunk(observation);
+        };
+        boolean finished = scanEngine.run(firstChunk, chunks, cancelled, contextFactory, counted(scanner), sink);
+        endPhase(SolverMetrics.Phase.DO_INITIAL_FULL, observation, (long) firstChunk << log2BatchSize,
+                (long) chunks << log2BatchSize, finished);
+        if (finished) {
+            progress = null;
+        }
+        return finished;
+    }
+
+    /**
+     * Decides how to run a full scan, by trying the tests out on a sample of the seed space. With
+     * several observations, the one whose levels let the fewest seeds through drives the scan (its
+     * level check runs in bulk), and the per-seed tests are sorted so the one that rejects the most
+     * seeds goes first. Within each test, the slots are sorted the same way. Returns the driver.
+     */
+    private static FullScanTest orderFullScanTests(FullScanTest[] tests) {
+        // Spread the sample out, in case nearby seeds behave alike.
+        final int blocks = 16;
+        final int blockSize = 1 << 14;
+        int[] blockSurvivors = new int[blockSize];
+        int[] survivors = new int[blocks * blockSize];
+        FullScanTest driver = null;
+        int passed = Integer.MAX_VALUE;
+        for (FullScanTest test : tests) {
+            LevelFilter filter = new LevelFilter(test.observation);
+            int testPassed = 0;
+            for (int block = 0; block < blocks; ++block) {
+                int blockPassed = filter.filter(block << 28, blockSize, blockSurvivors);
+                System.arraycopy(blockSurvivors, 0, survivors, testPassed, blockPassed);
+                testPassed += blockPassed;
+            }
+            if (testPassed < passed) {
+                driver = test;
+                passed = testPassed;
+            }
+        }
+        if (driver != tests[tests.length - 1]) {
+            // The sample in survivors is for the last test, re-do it for the driver.
+            LevelFilter filter = new LevelFilter(driver.observation);
+            passed = 0;
+            for (int block = 0; block < blocks; ++block) {
+                int blockPassed = filter.filter(block << 28, blockSize, blockSurvivors);
+                System.arraycopy(blockSurvivors, 0, survivors, passed, blockPassed);
+                passed += blockPassed;
+            }
+        }
+        // Sample the per-seed tests on the seeds that would reach them.
+        ScanContext context = new ScanContext();
+        for (FullScanTest test : tests) {
+            test.checkLevels = test != driver;
+            test.sample(context, survivors, passed);
+        }
+        // Stable, so ties keep the observation order.
+        Arrays.sort(tests, (first, second) -> Integer.compare(first.sampled, second.sampled));
+        if (LOGGER.isDebugEnabled()) {
+            StringBuilder builder = new StringBuilder();
+            for (FullScanTest test : tests) {
+                builder.append("\n  ").append(test.observation).append(": passed ").append(test.sampled)
+                        .append(", slot order ").append(Arrays.toString(test.slotOrder));
+            }
+            LOGGER.debug("Full scan of {} observation(s), {} of {} sample seeds pass the driver's levels: {}",
+                    tests.length, passed, survivors.length, builder);
+        }
+        return driver;
+    }
+
+    // Visible for benchmarks
+    boolean refine(final Observation observation, BooleanSupplier cancelled) {
+        // We filter candidates in place, one chunk of the set at a time. This is safe even though
+        // the chunks are scanned out of order, because the survivors of a chunk are only written
+        // back (to that same chunk) once it is done, and nothing else touches it.
+        final int chunks = candidates.chunkCount();
+        final ObservationFilter filter = new ObservationFilter(observation);
+        final ScanEngine.Scanner<ScanContext, Hits> scanner = (context, chunk) -> {
+            Hits hits = new Hits();
+            int size = candidates.chunkSize(chunk);
+            if (context.survivors == null || context.survivors.length < size) {
+                context.survivors = new int[size];
+            }
+            int[] source = context.survivors;
+            candidates.getChunk(chunk, source);
+            for (int i = 0; i < size; i++) {
+                if (filter.testEnchants(context.fastRand, source[i], context.picks)) {
+                    hits.add(source[i], filter.table, context.picks);
+                }
+            }
+            // The levels were already checked, back when these were found.
+            hits.scanned = size;
+            hits.levelsPassed = size;
+            return hits;
+        };
+        estimate(observation, chunks, candidates.size(), ScanContext::new, scanner, cancelled);
+
+        scanProgress.start(candidates.size(), 0);
+        beginPhase(SolverMetrics.Phase.REFINE);
+        boolean finished = scanEngine.run(chunks, cancelled, ScanContext::new, counted(scanner), (chunk, hits) -> {
+            candidates.retainInChunk(chunk, hits.seeds, hits.length);
+            addTallies(hits);
+            listener.onChunk(observation);
+        });
+        candidates.removeEmptyChunks();
+        endPhase(SolverMetrics.Phase.REFINE, observation, finished);
+        return finished;
+    }
+
+    static boolean testLevels(Random rand, int seed, Observation observation) {
+        rand.setSeed(seed);
+
+        for (int i = 0; i < 3; ++i) {
+            int level = EnchantmentHelper.calcItemStackEnchantability(rand, i, observation.power,
+                    observation.item);
+            if (level < i + 1) {
+                level = 0;
+            }
+            if (level != observation.levels[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // This should always return the same result as testLevels(). We keep both around, because
+    // testLevels() is less likely to break, so the tests check this against it. The scans use this,
+    // except for the bulk of doInitialFull(), which uses LcgSolver or the batched version in LevelFilter.
+    static boolean testLevelsFast(FastRandom rand, int seed, Observation observation) {
+        int[] levels = observation.levels;
+        int power = observation.power;
+        if (power > 15) {
+            power = 15;
+        }
+        int p1 = 1 + (power >> 1);
+        int p2 = power + 1;
+        rand.setSeed(seed);
+        int j = rand.nextInt(8) + p1 + rand.nextInt(p2);
+        int level = j / 3;
+        if (level < 1) {
+            level = 1;
+        }
+        if (level != levels[0]) {
+            return false;
+        }
+        j = rand.nextInt(8) + p1 + rand.nextInt(p2);
+        level = j * 2 / 3 + 1;
+        if (level < 2) {
+            level = 0;
+        }
+        if (level != levels[1]) {
+            return false;
+        }
+        j = rand.nextInt(8) + p1 + rand.nextInt(p2);
+        level = power * 2;
+        if (level < j) {
+            level = j;
+        }
+        if (level < 3) {
+            level = 0;
+        }
+        return level == levels[2];
+    }
+
+    static boolean testEnchants(Random rand, int seed, Observation observation,
+            List<EnchantmentData>[] tempEnchantmentData) {
+        for (int i = 0; i < 3; ++i) {
+            int level = observation.levels[i];
+
+            if (level == 0) {
+                tempEnchantmentData[i] = null;
+                continue;
+            }
+            List<EnchantmentData> list = buildEnchantmentList(rand, seed, observation, i);
+            tempEnchantmentData[i] = list;
+            if (list.isEmpty()) {
+                if (observation.enchants[i] == -1) {
+                    // Nothing at the observed slot, so it matches.
+                    continue;
+                }
+                return false;
+            }
+            EnchantmentData data = list.get(rand.nextInt(list.size()));
+            if (Enchantment.getEnchantmentByID(observation.enchants[i]) != data.enchantment ||
+                    observation.enchantLevels[i] != data.enchantmentLevel) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The same as the corresponding slot of testEnchants(), but on FastRandom and a precomputed
+     * EnchantTable, without allocating anything. The enchants that were rolled go in picks.
+     */
+    static boolean testEnchantFast(FastRandom rand, int seed, Observation observation, EnchantTable table,
+            EnchantTable.Picks picks, int index) {
+        int level = observation.levels[index];
+        picks.levels[index] = -1;
+        picks.counts[index] = 0;
+        if (level == 0) {
+            return true; // Always matches
+        }
+        int enchantability = table.enchantability;
+        if (enchantability <= 0) {
+            return observation.enchants[index] == -1;
+        }
+        picks.ensureCapacity(table);
+        rand.setSeed(seed + index);
+
+        level = level + 1 + rand.nextInt(enchantability / 4 + 1) + rand.nextInt(enchantability / 4 + 1);
+        float f = (rand.nextFloat() + rand.nextFloat() - 1.0F) * 0.15F;
+        level = MathHelper.clamp(Math.round((float) level + (float) level * f), 1, Integer.MAX_VALUE);
+        final int size = table.ids[level].length;
+        final int[] entries = picks.entries[index];
+        int count = 0;
+        if (size > 0) {
+            // The first pick is from everything, so the precomputed sums do the work.
+            final int[] prefixWeights = table.prefixWeights[level];
+            int weight = rand.nextInt(prefixWeights[size - 1]);
+            int pick = 0;
+            while (weight >= prefixWeights[pick]) {
+                pick++;
+            }
+            entries[count++] = pick;
+
+            int chance = level;
+            if (rand.nextInt(50) <= chance) {
+                final long[] mask = picks.mask;
+                final int words = (size + 63) >>> 6;
+                for (int w = 0; w < words; ++w) {
+                    mask[w] = -1L;
+                }
+                if ((size & 63) != 0) {
+                    mask[words - 1] = (1L << size) - 1;
+                }
+                final int[] weights = table.weights[level];
+                final long[][] incompatible = table.incompatible[level];
+                do {
+                    // This is removeIncompatible(): The last pick always knocks itself out, too.
+                    final long[] removed = incompatible[entries[count - 1]];
+                    int total = 0;
+                    for (int w = 0; w < words; ++w) {
+                        long bits = mask[w] &= ~removed[w];
+                        while (bits != 0) {
+                            total += weights[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                            bits &= bits - 1;
+                        }
+                    }
+                    if (total == 0)
+                        break;
+                    weight = rand.nextInt(total);
+                    pick = -1;
+                    for (int w = 0; pick < 0; ++w) {
+                        long bits = mask[w];
+                        while (bits != 0) {
+                            int entry = (w << 6) + Long.numberOfTrailingZeros(bits);
+                            weight -= weights[entry];
+                            if (weight < 0) {
+                                pick = entry;
+                                break;
+                            }
+                            bits &= bits - 1;
+                        }
+                    }
+                    entries[count++] = pick;
+                    chance /= 2;
+                } while (rand.nextInt(50) <= chance);
+            }
+        }
+
+        if (table.isBook && count > 1) {
+            int removed = rand.nextInt(count);
+            System.arraycopy(entries, removed + 1, entries, removed, count - removed - 1);
+            count--;
+        }
+        picks.levels[index] = level;
+        picks.counts[index] = count;
+        if (count == 0) {
+            return observation.enchants[index] == -1;
+        }
+        int chosen = entries[rand.nextInt(count)];
+        return table.ids[level][chosen] == observation.enchants[index]
+                && table.enchantLevels[level][chosen] == observation.enchantLevels[index];
+    }
+
+    // Visible for testing
+    static List<EnchantmentData> buildEnchantmentList(
+            Random rand, int seed, Observation observation, int id) {
+        // Do not be deceived: There is a cast to long inside setSeed() in the code this is copied
+        // from, but it happens *after* the addition, meaning it does absolutely nothing.
+        rand.setSeed(seed + id);
+        ItemStack item = observation.item;
+        if (item.getItem() == Items.ENCHANTED_BOOK) {
+            item = new ItemStack(Items.BOOK);
+        }
+        List<EnchantmentData> list = EnchantmentHelper.buildEnchantmentList(rand, item,
+                observation.levels[id], false);
+        if (item.getItem() == Items.BOOK && list.size() > 1) {
+            list.remove(rand.nextInt(list.size()));
+        }
+        return list;
+    }
+
+    /**
+     * Checks a reset observation (an actual enchant) against the seed, if it's known. Anything is
+     * consistent when it isn't.
+     */
+    public boolean isEnchantConsistent(Observation observation) {
+        if (candidates.size() != 1)
+            return true;
+        int id = observation.truncatedSeed;
+        Map<Enchantment, Integer> enchants = EnchantmentHelper.getEnchantments(observation.item);
+        ObservationFilter filter = new ObservationFilter(observation);
+        // Only the enchants that were rolled matter here, not whether the observation matches them.
+        filter.testSlot(rand, candidates.first(), picks, id);
+        int count = picks.counts[id];
+        if (enchants.size() != count)
+            return false;
+        for (int i = 0; i < count; ++i) {
+            int entry = picks.entries[id][i];
+            int level = picks.levels[id];
+            Integer actual = enchants.get(Enchantment.getEnchantmentByID(filter.table.ids[level][entry]));
+            if (actual == null || actual != filter.table.enchantLevels[level][entry])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a random sample of a scan's chunks, for a few tens of milliseconds at most, and hands what
+     * it found to the listener as an Estimate, so that there's something to show long before the
+     * exact scan is done. The candidates, tallies and scan progress aren't touched, so the scanner
+     * must not count towards the progress itself (see counted()). Scans too small to be worth it are
+     * skipped.
+     */
+    private void estimate(Observation observation, int chunks, long totalSeeds, Supplier<ScanContext> contextFactory,
+            ScanEngine.Scanner<ScanContext, Hits> scanner, BooleanSupplier cancelled) {
+        if (totalSeeds < ESTIMATE_MIN_SEEDS) {
+            return;
+        }
+        // The first sampleSize entries of a partial shuffle are a uniform sample of the chunks.
+        int sampleSize = Math.min(chunks, ESTIMATE_MAX_CHUNKS);
+        int[] order = new int[chunks];
+        for (int i = 0; i < chunks; ++i) {
+            order[i] = i;
+        }
+        Random random = new Random();
+        for (int i = 0; i < sampleSize; ++i) {
+            int j = i + random.nextInt(chunks - i);
+            int temp = order[i];
+            order[i] = order[j];
+            order[j] = temp;
+        }
+        final long start = System.nanoTime();
+        final Estimate estimate = new Estimate(totalSeeds);
+        // The sample is stopped by its own budget, which looks like a cancel to the engine. run()
+        // still waits for the sample chunks that were running, so the exact scan that follows has
+        // the candidates (which refine rewrites in place) and the pool to itself.
+        scanEngine.run(sampleSize,
+                () -> cancelled.getAsBoolean() || estimate.getMatches() >= ESTIMATE_MATCHES
+                        || System.nanoTime() - start >= ESTIMATE_NANOS,
+                contextFactory, (context, i) -> scanner.scan(context, order[i]), (i, hits) -> estimate.add(hits));
+        if (cancelled.getAsBoolean() || estimate.getMatches() == 0) {
+            return;
+        }
+        LOGGER.debug("Estimated {} candidates from {} matches in a sample of {} seeds, in {}ms",
+                estimate.getCandidates(), estimate.getMatches(), estimate.sampledSeeds,
+                (System.nanoTime() - start) / 1000000);
+        listener.onEstimate(observation, estimate);
+    }
+
+    /**
+     * Counts the seeds of each chunk towards scanProgress as soon as it's scanned. Kept out of the
+     * scanners themselves, so that estimate() can run them without counting.
+     */
+    private ScanEngine.Scanner<ScanContext, Hits> counted(ScanEngine.Scanner<ScanContext, Hits> scanner) {
+        return (context, chunk) -> {
+            Hits hits = scanner.scan(context, chunk);
+            scanProgress.add(hits.scanned);
+            return hits;
+        };
+    }
+
+    private void addHits(Hits hits) {
+        candidates.addAll(hits.seeds, hits.length);
+        addTallies(hits);
+    }
+
+    private void addTallies(Hits hits) {
+        tallies.addAll(hits.tally);
+        metrics.recordChunk(hits.scanned, hits.levelsPassed, hits.length);
+        phaseSeeds += hits.scanned;
+    }
+
+    private void beginPhase(SolverMetrics.Phase phase) {
+        phaseSeeds = 0;
+        phaseStart = metrics.beginPhase(phase);
+        phaseEvent = new FlightEvents.Scan();
+    }
+
+    /**
+     * Records a phase that didn't scan a range of the seed space: The hinted scan only looks at the
+     * seeds that match the hint, and refine only at the candidates.
+     */
+    private void endPhase(SolverMetrics.Phase phase, Observation observation, boolean finished) {
+        endPhase(phase, observation, FlightEvents.NO_RANGE, FlightEvents.NO_RANGE, finished);
+    }
+
+    /** Records the phase that just ended. Its seeds are [rangeStart, rangeEnd), as unsigned values. */
+    private void endPhase(SolverMetrics.Phase phase, Observation observation, long rangeStart, long rangeEnd,
+            boolean finished) {
+        metrics.endPhase(phase, phaseStart);
+        metrics.recordCandidates(candidates);
+        phaseEvent.end(phase, observation, rangeStart, rangeEnd, phaseSeeds, candidates.size(), finished);
+        phaseEvent = null;
+    }
+}
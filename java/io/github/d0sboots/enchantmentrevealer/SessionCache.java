@@ -0,0 +1,132 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The workers for sessions (server and player, as in SnapshotStore.getKey()) the client has left,
+ * still holding their candidates, so that hopping back to a server picks up right where it was
+ * instead of loading the snapshot and redoing the last scan.
+ *
+ * Only idle workers are kept, since a worker that is still scanning would keep burning CPU for a
+ * server nobody is on. Those are closed instead, which checkpoints the scan to the snapshot, and
+ * remembered until takeClosed() hands them to the next worker for the session to wait for. The
+ * cache is bounded by the total bytes of heap held by the candidates, and closes the least recently
+ * used workers to get back under. Spilled candidates don't count, since they're in a file that the
+ * OS pages in and out as needed (and spillThreshold already limits how much goes on the heap), so
+ * there's also a cap on how many workers are kept, which bounds those and the ones holding nothing.
+ * Parked workers have their trace closed, since nothing will be observed until they're taken back.
+ * Only used from the main (UI) thread.
+ */
+public class SessionCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // Visible for testing
+    static final int MAX_SESSIONS = 8;
+
+    private final LinkedHashMap<String, EnchantmentWorker> workers =
+            new LinkedHashMap<String, EnchantmentWorker>(16, 0.75f, /*accessOrder=*/true);
+    // Workers that were closed while still busy, which may not have written their checkpoint yet.
+    private final HashMap<String, EnchantmentWorker> closed = new HashMap<String, EnchantmentWorker>();
+    private final LongSupplier budgetBytes;
+
+    public SessionCache(LongSupplier budgetBytes) { this.budgetBytes = budgetBytes; }
+
+    /**
+     * Keeps the worker, which the client is leaving, for later. Workers without a snapshot key, or
+     * that are still busy, or that don't fit, are closed instead.
+     */
+    public void park(EnchantmentWorker worker) {
+        pruneClosed();
+        String key = worker.getSnapshotKey();
+        if (key == null) {
+            worker.close();
+            return;
+        }
+        if (!worker.isIdle()) {
+            worker.close();
+            closed.put(key, worker);
+            return;
+        }
+        worker.setTrace(null);
+        EnchantmentWorker old = workers.put(key, worker);
+        if (old != null && old != worker) {
+            old.close();
+        }
+        LOGGER.debug("Parked worker {} for {}, holding {} bytes", worker, key, worker.memoryBytes());
+        trim();
+    }
+
+    /** Takes back the worker parked for the key, if there is one. */
+    @Nullable
+    public EnchantmentWorker take(String key) { return workers.remove(key); }
+
+    /**
+     * Takes back the worker for the key that was closed by park() in the middle of a scan, if there
+     * is one, for the new worker to resume() after.
+     */
+    @Nullable
+    public EnchantmentWorker takeClosed(String key) {
+        pruneClosed();
+        return closed.remove(key);
+    }
+
+    /** The bytes of heap held by the candidates of all the parked workers. */
+    public long memoryBytes() {
+        long bytes = 0;
+        for (EnchantmentWorker worker : workers.values()) {
+            bytes += worker.memoryBytes();
+        }
+        return bytes;
+    }
+
+    public int size() { return workers.size(); }
+
+    // Once a closed worker's thread is gone its checkpoint is written, and there's nothing left to
+    // wait for.
+    private void pruneClosed() {
+        Iterator<EnchantmentWorker> it = closed.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isIdle()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void trim() {
+        long budget = budgetBytes.getAsLong();
+        long bytes = memoryBytes();
+        int size = workers.size();
+        Iterator<Map.Entry<String, EnchantmentWorker>> it = workers.entrySet().iterator();
+        while ((bytes > budget || size > MAX_SESSIONS) && it.hasNext()) {
+            Map.Entry<String, EnchantmentWorker> eldest = it.next();
+            bytes -= eldest.getValue().memoryBytes();
+            size--;
+            LOGGER.debug("Evicting worker for {} to stay under {} bytes and {} sessions", eldest.getKey(), budget,
+                    MAX_SESSIONS);
+            eldest.getValue().close();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.multiplayer.ServerData;
+import net.minecraftforge.fml.loading.FMLPaths;
+
+/**
+ * Keeps the worker's state on disk, so that it survives logging out or restarting the game. The
+ * server keeps the player's xpSeed across logins, so whatever we had worked out is still good when
+ * they come back.
+ *
+ * There is one file per server and player. The file starts with a small header holding the key, so
+ * a file that ends up in the wrong place is ignored instead of trusted. Writes go to a temporary
+ * file that is then moved over the real one, so a crash mid-write leaves the previous snapshot
+ * intact.
+ */
+public class SnapshotStore {
+    /** Writes the body of a snapshot. */
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /** Reads the body of a snapshot. */
+    public interface Reader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x45525353; // "ERSS"
+    // Bump this whenever the format of anything in the snapshot changes.
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String key;
+    private final Path file;
+
+    public SnapshotStore(Path directory, String key) {
+        this.key = key;
+        file = directory.resolve(key.replaceAll("[^A-Za-z0-9.-]", "_") + ".bin");
+    }
+
+    /** The store for whatever server the client is connected to right now. */
+    public static SnapshotStore forCurrentSession() {
+        Minecraft minecraft = Minecraft.getInstance();
+        ServerData serverData = minecraft.getCurrentServerData();
+        String server;
+        if (serverData != null) {
+            server = serverData.serverIP;
+        } else if (minecraft.getIntegratedServer() != null) {
+            server = "local/" + minecraft.getIntegratedServer().getFolderName();
+        } else {
+            server = "unknown";
+        }
+        UUID player = minecraft.getSession().getProfile().getId();
+        return new SnapshotStore(FMLPaths.GAMEDIR.get().resolve(EnchantmentRevealer.MODID).resolve("snapshots"),
+                server + "_" + player);
+    }
+
+    public String getKey() { return key; }
+
+    /** Returns false (after logging why) if the snapshot couldn't be written. */
+    public boolean save(Writer writer) {
+        Path temp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), "snapshot-", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                writer.write(out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't save snapshot {}: {}", file, e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e2) {
+                    // Nothing more we can do
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns false if there is no usable snapshot. A snapshot that exists but can't be read is
+     * logged and deleted, and the reader may have seen part of it.
+     */
+    public boolean load(Reader reader) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                throw new IOException("Not a snapshot for " + key);
+            }
+            reader.read(in);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Discarding unreadable snapshot {}: {}", file, e);
+            delete();
+            return false;
+        }
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't delete snapshot {}: {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.minecraft.init.Bootstrap;
+import net.minecraft.util.registry.IRegistry;
+import net.minecraftforge.fml.loading.FMLLoader;
+
+/**
+ * Runs the solver from the command line, without a client, on observations copied out of the log.
+ *
+ * Usage: SolverMain [--threads N] [--hint always|never|sometimes] [file...]
+ *
+ * Each file is one session, read a line at a time, and every line with an Observation(...) in it is
+ * fed to the solver in order, just like the worker would get it. Other lines (including the
+ * EnchantObservations in an error dump) are skipped. With no files, a single session is read from
+ * stdin. After each observation, the number of candidates left and how long it took are printed,
+ * then the seed (if there's only one) and the tallies for the last observation.
+ */
+public class SolverMain {
+    private SolverMain() {}
+
+    /**
+     * Gets the registries set up outside of the game. Forge wants versions that are normally filled
+     * in by the launcher, so those are faked.
+     */
+    static void bootstrap() {
+        try {
+            Field field = FMLLoader.class.getDeclaredField("mcVersion");
+            field.setAccessible(true);
+            field.set(FMLLoader.class, "Headless");
+            field = FMLLoader.class.getDeclaredField("forgeVersion");
+            field.setAccessible(true);
+            field.set(FMLLoader.class, "Headless");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        Bootstrap.register();
+    }
+
+    /** The options shared by the command line tools. */
+    static class Options {
+        int threads;
+        SeedSolver.HintMode hintMode = SeedSolver.HintMode.SOMETIMES;
+        final List<String> files = new ArrayList<>();
+
+        /** A solver that scans with the requested number of threads. */
+        SeedSolver newSolver() {
+            final int scanThreads = threads;
+            return new SeedSolver(new ScanEngine(() -> scanThreads), observation -> {});
+        }
+    }
+
+    /**
+     * Parses [--threads N] [--hint always|never|sometimes] followed by files. Anything else (or no
+     * files, if they're required) prints the usage and exits.
+     */
+    static Options parseArgs(String[] args, String usage, boolean filesRequired) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                options.threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--hint") && i + 1 < args.length) {
+                options.hintMode = SeedSolver.HintMode.parse(args[++i]);
+            } else if (args[i].startsWith("--")) {
+                System.err.println("Usage: " + usage);
+                System.exit(2);
+            } else {
+                options.files.add(args[i]);
+            }
+        }
+        if (filesRequired && options.files.isEmpty()) {
+            System.err.println("Usage: " + usage);
+            System.exit(2);
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options =
+                parseArgs(args, "SolverMain [--threads N] [--hint always|never|sometimes] [file...]", false);
+        bootstrap();
+        SeedSolver solver = options.newSolver();
+        boolean ok = true;
+        if (options.files.isEmpty()) {
+            ok = run(solver, new InputStreamReader(System.in, StandardCharsets.UTF_8), options.hintMode);
+        }
+        for (String file : options.files) {
+            System.out.println("== " + file);
+            ok &= run(solver, Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8), options.hintMode);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Solves one session. Returns false if the solver gave up on it. */
+    private static boolean run(SeedSolver solver, Reader input, SeedSolver.HintMode hintMode) throws IOException {
+        solver.clear();
+        List<Observation> observations = new ArrayList<>();
+        Observation last = null;
+        try (BufferedReader reader = new BufferedReader(input)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.contains("Observation(") || line.contains("EnchantObservation(")) {
+                    continue;
+                }
+                Observation observation = Observation.parse(line);
+                observations.add(observation);
+                if (!observation.hasEnchants()) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                SeedSolver.Outcome outcome = solver.solve(observations, null, hintMode, () -> false);
+                System.out.printf("%s: %d candidates in %dms%s%n", observation,
+                        solver.getCandidates().size(), (System.nanoTime() - start) / 1000000,
+                        solver.didFallback() ? " (ignoring the seed hint)" : "");
+                if (outcome != SeedSolver.Outcome.SOLVED) {
+                    System.out.println("Gave up: " + outcome);
+                    return false;
+                }
+                last = observation;
+            }
+        }
+        if (last == null) {
+            System.out.println("No observations with enchants");
+            return true;
+        }
+        if (solver.getCandidates().size() == 1) {
+            System.out.printf("Seed: 0x%08X%n", solver.getCandidates().first());
+        }
+        for (int slot = 0; slot < 3; ++slot) {
+            if (last.levels[slot] == 0) {
+                continue;
+            }
+            System.out.printf("Slot %d (level %d):%n", slot + 1, last.levels[slot]);
+            List<EnchantCount> list = solver.getTallies().toList(slot);
+            Collections.sort(list, Collections.reverseOrder());
+            for (EnchantCount count : list) {
+                System.out.printf("  %s %d: %.1f%%%n", IRegistry.field_212628_q.getKey(count.enchant.enchantment),
+                        count.enchant.enchantmentLevel, count.count * 100.0 / solver.getCandidates().size());
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,169 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Live counters for the worker, registered as an MBean so that a long scan can be watched from
+ * JConsole or VisualVM.
+ *
+ * Nothing here is touched per seed. The scans count into their per-chunk Hits, and those counts are
+ * added in once per chunk, as the chunk is consumed. The gauges are plain volatiles, written by the
+ * worker thread, so reading them never waits on the worker's lock. There's one instance for the
+ * whole process, shared by whichever worker is current.
+ */
+public class SolverMetrics implements SolverMetricsMBean {
+    public enum Phase {
+        IDLE, DO_INITIAL, DO_INITIAL_FULL, REFINE, GENERATE_RESTING_STATE
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    public static final SolverMetrics INSTANCE = register(new SolverMetrics());
+
+    private final LongAdder seedsScanned = new LongAdder();
+    private final LongAdder levelRejections = new LongAdder();
+    private final LongAdder enchantRejections = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+    private volatile Phase phase = Phase.IDLE;
+    private volatile long phaseStartNanos;
+    private volatile long phaseStartSeeds;
+    private volatile double lastSeedsPerSecond;
+    private volatile int candidateCount;
+    private volatile long candidateBytes;
+    private volatile boolean candidatesSpilled;
+    private volatile int queueDepth;
+
+    SolverMetrics() {
+        for (int i = 0; i < phaseNanos.length; ++i) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    private static SolverMetrics register(SolverMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("io.github.d0sboots.enchantmentrevealer:type=SolverMetrics"));
+        } catch (JMException | RuntimeException e) {
+            // The counters still work, there's just nobody to see them.
+            LOGGER.warn("Couldn't register the solver metrics MBean: {}", e);
+        }
+        return metrics;
+    }
+
+    /** Marks the start of a phase. Returns the start time, to hand back to endPhase(). */
+    long beginPhase(Phase phase) {
+        phaseStartSeeds = seedsScanned.sum();
+        long start = System.nanoTime();
+        phaseStartNanos = start;
+        this.phase = phase;
+        return start;
+    }
+
+    void endPhase(Phase phase, long start) {
+        long elapsed = System.nanoTime() - start;
+        phaseNanos[phase.ordinal()].add(elapsed);
+        if (phase != Phase.GENERATE_RESTING_STATE) {
+            lastSeedsPerSecond = rate(seedsScanned.sum() - phaseStartSeeds, elapsed);
+        }
+        this.phase = Phase.IDLE;
+    }
+
+    /**
+     * Adds in one chunk's worth of scanning: How many seeds it covered, how many of those got past
+     * the level check, and how many matched everything.
+     */
+    void recordChunk(long scanned, long levelsPassed, long matched) {
+        seedsScanned.add(scanned);
+        levelRejections.add(scanned - levelsPassed);
+        enchantRejections.add(levelsPassed - matched);
+    }
+
+    void recordCandidates(CandidateSet candidates) {
+        candidateCount = candidates.size();
+        candidateBytes = candidates.memoryBytes();
+        candidatesSpilled = candidates.isSpilled();
+    }
+
+    void recordQueueDepth(int depth) { queueDepth = depth; }
+
+    private static double rate(long seeds, long nanos) { return nanos <= 0 ? 0 : seeds * 1e9 / nanos; }
+
+    private long phaseMillis(Phase phase) { return phaseNanos[phase.ordinal()].sum() / 1000000; }
+
+    @Override
+    public String getPhase() { return phase.name(); }
+
+    @Override
+    public long getSeedsScanned() { return seedsScanned.sum(); }
+
+    @Override
+    public double getSeedsPerSecond() {
+        if (phase == Phase.IDLE || phase == Phase.GENERATE_RESTING_STATE) {
+            return lastSeedsPerSecond;
+        }
+        return rate(seedsScanned.sum() - phaseStartSeeds, System.nanoTime() - phaseStartNanos);
+    }
+
+    @Override
+    public long getLevelRejections() { return levelRejections.sum(); }
+
+    @Override
+    public long getEnchantRejections() { return enchantRejections.sum(); }
+
+    @Override
+    public int getCandidateCount() { return candidateCount; }
+
+    @Override
+    public long getCandidateBytes() { return candidateBytes; }
+
+    @Override
+    public boolean isCandidatesSpilled() { return candidatesSpilled; }
+
+    @Override
+    public int getQueueDepth() { return queueDepth; }
+
+    @Override
+    public long getDoInitialMillis() { return phaseMillis(Phase.DO_INITIAL); }
+
+    @Override
+    public long getDoInitialFullMillis() { return phaseMillis(Phase.DO_INITIAL_FULL); }
+
+    @Override
+    public long getRefineMillis() { return phaseMillis(Phase.REFINE); }
+
+    @Override
+    public long getGenerateRestingStateMillis() { return phaseMillis(Phase.GENERATE_RESTING_STATE); }
+
+    @Override
+    public void reset() {
+        seedsScanned.reset();
+        levelRejections.reset();
+        enchantRejections.reset();
+        for (LongAdder nanos : phaseNanos) {
+            nanos.reset();
+        }
+        lastSeedsPerSecond = 0;
+        phaseStartSeeds = 0;
+    }
+}
@@ -0,0 +1,51 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+/** The management interface of {@link SolverMetrics}, as seen from JConsole or VisualVM. */
+public interface SolverMetricsMBean {
+    /** What the worker is doing right now: IDLE, or the name of the phase it's in. */
+    String getPhase();
+
+    long getSeedsScanned();
+
+    /** The scan rate of the phase in progress, or of the last one if the worker is idle. */
+    double getSeedsPerSecond();
+
+    /** Seeds thrown out by the level check (including the ones LcgSolver skipped over). */
+    long getLevelRejections();
+
+    /** Seeds that got past the levels, but were thrown out by the enchants. */
+    long getEnchantRejections();
+
+    int getCandidateCount();
+
+    long getCandidateBytes();
+
+    boolean isCandidatesSpilled();
+
+    int getQueueDepth();
+
+    long getDoInitialMillis();
+
+    long getDoInitialFullMillis();
+
+    long getRefineMillis();
+
+    long getGenerateRestingStateMillis();
+
+    /** Zeroes the counters and times. The gauges (candidates, queue, phase) are left alone. */
+    void reset();
+}
@@ -0,0 +1,139 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays recorded traces (see ObservationTrace) through the solver at full speed, for measuring
+ * solver changes against what players actually do.
+ *
+ * Usage: TraceReplay [--threads N] [--hint always|never|sometimes] trace...
+ *
+ * The observations go through a SeedSolver the same way EnchantmentWorker hands them over, minus
+ * the waiting: Resets check the enchantments and start over, and everything with enchants is
+ * solved. Each observation's latency is printed, along with the time to a unique seed for every
+ * stretch between resets that got there, which is the sum of the latencies up to that point. A
+ * summary over all the traces comes last.
+ */
+public class TraceReplay {
+    private final SeedSolver solver;
+    private final SeedSolver.HintMode hintMode;
+    // Across all traces, in nanoseconds.
+    private final List<Long> latencies = new ArrayList<>();
+    private final List<Long> timesToUnique = new ArrayList<>();
+    private int unsolved;
+    private int errors;
+
+    TraceReplay(SeedSolver solver, SeedSolver.HintMode hintMode) {
+        this.solver = solver;
+        this.hintMode = hintMode;
+    }
+
+    public static void main(String[] args) throws IOException {
+        SolverMain.Options options = SolverMain.parseArgs(
+                args, "TraceReplay [--threads N] [--hint always|never|sometimes] trace...", true);
+        SolverMain.bootstrap();
+        TraceReplay replay = new TraceReplay(options.newSolver(), options.hintMode);
+        for (String file : options.files) {
+            System.out.println("== " + file);
+            replay.replay(ObservationTrace.read(Paths.get(file)));
+        }
+        replay.printSummary();
+        System.exit(replay.errors == 0 ? 0 : 1);
+    }
+
+    void replay(List<Observation> trace) {
+        solver.clear();
+        List<Observation> observations = new ArrayList<>();
+        long sinceReset = 0;
+        boolean unique = false;
+        for (Observation observation : trace) {
+            if (observation.power == Observation.RESET_POWER) {
+                if (!solver.isEnchantConsistent(observation)) {
+                    System.out.println("Inconsistent: " + observation);
+                    errors++;
+                }
+                if (!observations.isEmpty() && !unique) {
+                    unsolved++;
+                }
+                observations.clear();
+                solver.clear();
+                sinceReset = 0;
+                unique = false;
+                continue;
+            }
+            observations.add(observation);
+            if (!observation.hasEnchants()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            SeedSolver.Outcome outcome = solver.solve(observations, null, hintMode, () -> false);
+            long latency = System.nanoTime() - start;
+            latencies.add(latency);
+            sinceReset += latency;
+            System.out.printf("%6.1fms %10d candidates%s%n", latency / 1e6, solver.getCandidates().size(),
+                    solver.didFallback() ? " (ignoring the seed hint)" : "");
+            if (outcome != SeedSolver.Outcome.SOLVED) {
+                // The worker would have reported this and dropped everything.
+                System.out.println("Gave up: " + outcome + " at " + observation);
+                errors++;
+                observations.clear();
+                solver.clear();
+                sinceReset = 0;
+                unique = false;
+                continue;
+            }
+            if (!unique && solver.getCandidates().size() == 1) {
+                unique = true;
+                timesToUnique.add(sinceReset);
+                System.out.printf("Unique seed 0x%08X after %.1fms%n", solver.getCandidates().first(),
+                        sinceReset / 1e6);
+            }
+        }
+        if (!observations.isEmpty() && !unique) {
+            unsolved++;
+        }
+    }
+
+    void printSummary() {
+        System.out.println("== Summary");
+        System.out.printf("Observations solved: %d, latency %s%n", latencies.size(), describe(latencies));
+        System.out.printf("Seeds found: %d, time to unique %s%n", timesToUnique.size(), describe(timesToUnique));
+        System.out.printf("Left without a unique seed: %d, errors: %d%n", unsolved, errors);
+    }
+
+    private static String describe(List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return "n/a";
+        }
+        List<Long> sorted = new ArrayList<>(nanos);
+        Collections.sort(sorted);
+        long total = 0;
+        for (long value : sorted) {
+            total += value;
+        }
+        return String.format("mean %.1fms, median %.1fms, p95 %.1fms, max %.1fms", total / 1e6 / sorted.size(),
+                percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6, sorted.get(sorted.size() - 1) / 1e6);
+    }
+
+    private static long percentile(List<Long> sorted, int percent) {
+        return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percent / 100));
+    }
+}
@@ -0,0 +1,127 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.minecraft.client.gui.FontRenderer;
+import net.minecraft.client.resources.I18n;
+
+/**
+ * The text part of drawing the enchanting GUI, with a stub FontRenderer so that only our own work
+ * is measured. drawFrame() is what happens every frame now, and drawFrameUncached() is what used to
+ * (working out the widths and the "+X more" text each time). buildLayout() is the part that now
+ * only happens when the worker publishes a new state. Run with "-prof gc" to see the allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GuiRenderBenchmark {
+    /** Measures strings as six pixels a character, and draws nothing. */
+    static class StubFontRenderer extends FontRenderer {
+        int drawn;
+
+        StubFontRenderer() {
+            super(null, null);
+        }
+
+        @Override
+        public int getStringWidth(String text) { return text == null ? 0 : text.length() * 6; }
+
+        @Override
+        public int drawString(String text, float x, float y, int color) {
+            drawn += text.length();
+            return (int) x;
+        }
+    }
+
+    private final StubFontRenderer renderer = new StubFontRenderer();
+    private EnchantmentWorker.State state;
+    private EnchantLayout layout;
+
+    @Setup
+    public void setUp() {
+        // Loading the test class is what bootstraps Minecraft and sets up I18n.
+        EnchantmentWorkerTest.getTestObservation();
+        // A typical state partway through a search: A handful of possibilities in each slot, with
+        // a long name in the last one so that it scrolls.
+        int[][] enchants = {
+                { EnchantNames.pack(0x14, 1), EnchantNames.pack(0x0, 1), EnchantNames.pack(0x3, 1) },
+                { EnchantNames.pack(0x0, 2), EnchantNames.pack(0x14, 2), EnchantNames.pack(0x1, 2),
+                        EnchantNames.pack(0x4, 2), EnchantNames.pack(0x3, 2) },
+                { EnchantNames.pack(0x1, 2), EnchantNames.pack(0x0, 3), EnchantNames.pack(0x14, 3),
+                        EnchantNames.pack(0x3, 3), EnchantNames.pack(0x4, 3), EnchantNames.pack(0x1, 3) } };
+        int[][] counts = { { 5000, 3100, 1900 }, { 5000, 2200, 1400, 900, 500 }, { 5000, 1800, 1200, 1000, 700, 300 } };
+        state = new EnchantmentWorker.State(EnchantmentWorker.State.Status.POSSIBLES, 5000, enchants, counts, null);
+        layout = new EnchantLayout(state, renderer, false);
+    }
+
+    @Benchmark
+    public EnchantLayout buildLayout() { return new EnchantLayout(state, renderer, false); }
+
+    @Benchmark
+    public int drawFrame() {
+        layout.draw(renderer, 100, 50, 0.25F);
+        return renderer.drawn;
+    }
+
+    /** The per-frame text work from before EnchantLayout, for comparison. */
+    @Benchmark
+    public int drawFrameUncached() {
+        for (int i = 0; i < 3; ++i) {
+            int[] enchants = state.enchants[i];
+            if (enchants.length == 0) {
+                continue;
+            }
+            String ench = EnchantNames.get(enchants[0]);
+            int stringWidth = renderer.getStringWidth(ench);
+            float adjust = (stringWidth <= 88 ? 0.5F : 0.25F) * (88 - stringWidth);
+            renderer.drawString(ench, 178 + adjust, 65 + 19 * i, 0x222222);
+
+            int[] enchantCounts = state.counts[i];
+            int ecLen = enchantCounts.length;
+            if (ecLen == 1) {
+                continue;
+            }
+            final String plusX;
+            if (enchantCounts[ecLen - 1] == enchantCounts[0]) {
+                plusX = "" + (ecLen - 1);
+            } else {
+                int acc = 0;
+                for (int j = 1; j < ecLen; ++j) {
+                    acc += enchantCounts[j];
+                }
+                int total = (int) (((acc * 200L + 1) / enchantCounts[0]) >>> 1);
+                plusX = String.format("%d.%02d", total / 100, total % 100);
+            }
+            renderer.drawString(I18n.format("enchantmentrevealer.text.plusx", plusX), 180, 74 + 19 * i, 0x222222);
+        }
+        return renderer.drawn;
+    }
+}
@@ -0,0 +1,162 @@
+/* Copyright 2019 David Walker
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. */
+
+package io.github.d0sboots.enchantmentrevealer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import net.minecraft.enchantment.EnchantmentData;
+
+/**
+ * Throughput of the solver's hot paths, on the same fixture observations as EnchantmentWorkerTest.
+ *
+ * Every benchmark counts one operation per seed tested, so the scores are seeds/second. Run with
+ * "-prof gc" to also get the bytes allocated per seed (gc.alloc.rate.norm), which should be zero
+ * for everything on the fast kernels. refine() and doInitialFull() run on the scan pool, so their
+ * scores are for all threads together, not per thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SolverBenchmark {
+    // Seeds per invocation, for the single-threaded kernels.
+    private static final int SEEDS = 1 << 16;
+    // Candidates for refine(). Consecutive seeds, since they only need to be in order.
+    private static final int CANDIDATES = 1 << 22;
+    // doInitialFull() covers 1/2^LOG2_FRACTION of the space: 2^24 seeds.
+    private static final int LOG2_FRACTION = 8;
+
+    @Param({ "test", "weak" })
+    public String fixture;
+
+    private Observation observation;
+    private EnchantTable table;
+    private final FastRandom fastRand = new FastRandom();
+    private final Random rand = new Random(0);
+    private final EnchantTable.Picks picks = new EnchantTable.Picks();
+    @SuppressWarnings("unchecked")
+    private final List<EnchantmentData>[] tempEnchantmentData = new List[3];
+    private EnchantTally tally;
+    private int[] candidates;
+    private SeedSolver solver;
+
+    @Setup
+    public void setUp() {
+        // This goes first, because loading the test class is what bootstraps Minecraft.
+        observation = fixture.equals("weak") ? EnchantmentWorkerTest.getWeakObservation()
+                : EnchantmentWorkerTest.getTestObservation();
+        table = EnchantTableCache.get(observation.item);
+        tally = new EnchantTally();
+        candidates = new int[CANDIDATES];
+        for (int i = 0; i < CANDIDATES; ++i) {
+            candidates[i] = i;
+        }
+        solver = new SeedSolver(new ScanEngine(() -> 0), observation -> {});
+    }
+
+    @Setup(Level.Invocation)
+    public void resetCandidates(BenchmarkParams params) {
+        solver.candidates.clear();
+        // Loaded here, so that it's not part of what's measured.
+        if (params.getBenchmark().endsWith(".refine")) {
+            solver.candidates.addAll(candidates, CANDIDATES);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEEDS)
+    public int testLevelsFast() {
+        int passed = 0;
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            if (SeedSolver.testLevelsFast(fastRand, seed, observation)) {
+                passed++;
+            }
+        }
+        return passed;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEEDS)
+    public int testEnchantFast() {
+        int passed = 0;
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            for (int slot = 0; slot < 3; ++slot) {
+                if (SeedSolver.testEnchantFast(fastRand, seed, observation, table, picks, slot)) {
+                    passed++;
+                }
+            }
+        }
+        return passed;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEEDS)
+    public int testEnchants() {
+        int passed = 0;
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            if (SeedSolver.testEnchants(rand, seed, observation, tempEnchantmentData)) {
+                passed++;
+            }
+        }
+        return passed;
+    }
+
+    /** What the scans do for every seed that matches: Roll all the slots, and tally the enchants. */
+    @Benchmark
+    @OperationsPerInvocation(SEEDS)
+    public EnchantTally addAndTallyEnchants() {
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            for (int slot = 0; slot < 3; ++slot) {
+                SeedSolver.testEnchantFast(fastRand, seed, observation, table, picks, slot);
+            }
+            tally.add(table, picks);
+        }
+        return tally;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CANDIDATES)
+    public int refine() {
+        solver.refine(observation, () -> false);
+        return solver.candidates.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1 << (32 - LOG2_FRACTION))
+    public int doInitialFull() {
+        solver.doInitialFull(Collections.singletonList(observation), LOG2_FRACTION);
+        return solver.candidates.size();
+    }
+}
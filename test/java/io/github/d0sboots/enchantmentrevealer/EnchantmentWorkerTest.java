@@ -14,17 +14,29 @@
 
 package io.github.d0sboots.enchantmentrevealer;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.PrimitiveIterator;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -41,29 +53,18 @@ import net.minecraft.client.resources.I18n;
 import net.minecraft.client.resources.Locale;
 import net.minecraft.enchantment.Enchantment;
 import net.minecraft.enchantment.EnchantmentData;
-import net.minecraft.init.Bootstrap;
+import net.minecraft.enchantment.EnchantmentHelper;
 import net.minecraft.init.Items;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.text.Style;
 import net.minecraft.util.text.TextComponentString;
 import net.minecraft.util.text.TextComponentTranslation;
 import net.minecraft.util.text.TextFormatting;
-import net.minecraftforge.fml.loading.FMLLoader;
 
 @RunWith(MockitoJUnitRunner.StrictStubs.class)
 public class EnchantmentWorkerTest {
     static {
-        try {
-            Field field = FMLLoader.class.getDeclaredField("mcVersion");
-            field.setAccessible(true);
-            field.set(FMLLoader.class, "Test version");
-            field = FMLLoader.class.getDeclaredField("forgeVersion");
-            field.setAccessible(true);
-            field.set(FMLLoader.class, "Test version");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        Bootstrap.register();
+        SolverMain.bootstrap();
         Locale locale = new Locale();
         try {
             Method method = I18n.class.getDeclaredMethod("setLocale", Locale.class);
@@ -77,8 +78,8 @@ public class EnchantmentWorkerTest {
     @Mock
     GuiNewChat guiChat;
 
-    // A generic test observation
-    private static Observation getTestObservation() {
+    // A generic test observation. Also used by the benchmarks.
+    static Observation getTestObservation() {
         Observation observation = new Observation();
         observation.truncatedSeed = 0x2340;
         observation.power = 6;
@@ -97,7 +98,7 @@ public class EnchantmentWorkerTest {
 
     // An observation at low power that has two empty slots, which has exposed bugs
     // in the past.
-    private static Observation getWeakObservation() {
+    static Observation getWeakObservation() {
         Observation observation = new Observation();
         observation.truncatedSeed = 0x08e0;
         observation.power = 0;
@@ -114,6 +115,33 @@ public class EnchantmentWorkerTest {
         return observation;
     }
 
+    // What the table shows for the seed, except that the seed hint (which the server sends) is
+    // whatever we're given.
+    private static Observation observe(int seed, ItemStack item, int power, int hint) {
+        Observation observation = new Observation();
+        observation.truncatedSeed = (short) hint;
+        observation.power = power;
+        observation.item = item;
+        Random rand = new Random();
+        rand.setSeed(seed);
+        for (int i = 0; i < 3; ++i) {
+            int level = EnchantmentHelper.calcItemStackEnchantability(rand, i, power, item);
+            observation.levels[i] = level < i + 1 ? 0 : level;
+        }
+        for (int i = 0; i < 3; ++i) {
+            if (observation.levels[i] == 0) {
+                continue;
+            }
+            List<EnchantmentData> list = SeedSolver.buildEnchantmentList(rand, seed, observation, i);
+            if (!list.isEmpty()) {
+                EnchantmentData data = list.get(rand.nextInt(list.size()));
+                observation.enchants[i] = Observation.getEnchantmentID(data.enchantment);
+                observation.enchantLevels[i] = data.enchantmentLevel;
+            }
+        }
+        return observation;
+    }
+
     // An observation that should trigger error-handling behavior, as it is inconsistent.
     private static Observation getUnenchantableObservation() {
         Observation observation = getTestObservation();
@@ -136,14 +164,33 @@ public class EnchantmentWorkerTest {
         public AbstractCommentedConfig clone() { return new SimpleCommentedConfig(this); }
     }
 
+    @Test
+    public void testFastRandom() {
+        Random rand = new Random(0);
+        FastRandom fastRand = new FastRandom();
+        // Bounds that exercise the power-of-two path, the common path, and (for the big ones) the
+        // rejection loop inside nextInt().
+        int[] bounds = { 1, 2, 3, 8, 15, 16, 50, 100, (1 << 30) + 1, Integer.MAX_VALUE };
+        for (int seed = -5000; seed < 5000; ++seed) {
+            rand.setSeed(seed * 0x9E3779B9L);
+            fastRand.setSeed(seed * 0x9E3779B9L);
+            for (int bound : bounds) {
+                assertEquals(rand.nextInt(bound), fastRand.nextInt(bound));
+                assertEquals(Float.floatToRawIntBits(rand.nextFloat()),
+                        Float.floatToRawIntBits(fastRand.nextFloat()));
+            }
+        }
+    }
+
     @Test
     public void testTestLevels() {
         Random rand = new Random(0);
+        FastRandom fastRand = new FastRandom.Checked();
         Observation observation = getTestObservation();
         int count = 0;
         for (int i = 0; i < 10000000; ++i) {
-            boolean expected = EnchantmentWorker.testLevels(rand, i, observation);
-            boolean actual = EnchantmentWorker.testLevelsFast(rand, i, observation);
+            boolean expected = SeedSolver.testLevels(rand, i, observation);
+            boolean actual = SeedSolver.testLevelsFast(fastRand, i, observation);
             assertEquals(expected, actual);
             if (expected) {
                 count++;
@@ -152,6 +199,263 @@ public class EnchantmentWorkerTest {
         assertTrue(count >= 10000);
     }
 
+    @Test
+    public void testLevelFilter() {
+        FastRandom rand = new FastRandom.Checked();
+        Random levelRand = new Random(0);
+        int[] survivors = new int[1 << 16];
+        // Pairs of (seed, power). The last two seeds hit the rejection loop in nextInt(15) for slot 0.
+        int[][] cases = new int[19][];
+        for (int power = 0; power <= 16; ++power) {
+            cases[power] = new int[] { 0x249e08e4 + power, power };
+        }
+        cases[17] = new int[] { 0x90790d2e, 14 };
+        cases[18] = new int[] { 0xbbd657e7, 14 };
+        for (int[] testCase : cases) {
+            Observation observation = getTestObservation();
+            observation.power = testCase[1];
+            // Use levels that actually occur at this power, so that some seeds pass.
+            levelRand.setSeed(testCase[0]);
+            for (int i = 0; i < 3; ++i) {
+                int level = EnchantmentHelper.calcItemStackEnchantability(
+                        levelRand, i, observation.power, observation.item);
+                observation.levels[i] = level < i + 1 ? 0 : level;
+            }
+            LevelFilter filter = new LevelFilter(observation);
+            // The third range wraps from Integer.MAX_VALUE to Integer.MIN_VALUE.
+            for (int start : new int[] { 0, 0x249e0000, Integer.MAX_VALUE - 1000, testCase[0] - 1000 }) {
+                int passed = filter.filter(start, survivors.length - 7, survivors);
+                int j = 0;
+                for (int i = 0; i < survivors.length - 7; ++i) {
+                    if (SeedSolver.testLevelsFast(rand, start + i, observation)) {
+                        assertEquals(start + i, survivors[j++]);
+                    }
+                }
+                assertEquals(j, passed);
+            }
+        }
+    }
+
+    @Test
+    public void testLcgSolver() {
+        Random levelRand = new Random(0);
+        int[] survivors = new int[1 << 16];
+        int solved = 0;
+        for (int power = 0; power <= 16; ++power) {
+            int seed = 0x249e08e4 + power * 0x01010101;
+            Observation observation = getTestObservation();
+            observation.power = power;
+            levelRand.setSeed(seed);
+            for (int i = 0; i < 3; ++i) {
+                int level = EnchantmentHelper.calcItemStackEnchantability(
+                        levelRand, i, observation.power, observation.item);
+                observation.levels[i] = level < i + 1 ? 0 : level;
+            }
+            LcgSolver solver = LcgSolver.create(observation, 16);
+            if (solver == null) {
+                continue;
+            }
+            solved++;
+            LevelFilter filter = new LevelFilter(observation);
+            // The block holding the real seed, and one in the negative half.
+            for (int start : new int[] { seed & ~0xFFFF, 0xC0DE0000 }) {
+                solver.solve(start);
+                int passed = filter.filter(start, survivors.length, survivors);
+                assertEquals(passed, solver.foundLength);
+                for (int i = 0; i < passed; ++i) {
+                    assertEquals(survivors[i], solver.found[i]);
+                }
+            }
+        }
+        assertTrue("Solver was never selective enough", solved > 0);
+    }
+
+    @Test
+    public void testScanEngineOrder() {
+        final int[] next = new int[1];
+        final AtomicInteger contexts = new AtomicInteger();
+        // Chunks take varying amounts of time, so they finish out of order.
+        assertTrue(new ScanEngine(() -> 4).run(200, () -> false, () -> {
+            contexts.incrementAndGet();
+            return new Random();
+        }, (rand, chunk) -> {
+            try {
+                Thread.sleep(rand.nextInt(3));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return chunk * 3;
+        }, (chunk, result) -> {
+            assertEquals(next[0]++, chunk);
+            assertEquals(chunk * 3, (int) result);
+        }));
+        assertEquals(200, next[0]);
+        // The contexts are reused from chunk to chunk.
+        assertTrue(contexts.get() <= 4);
+    }
+
+    @Test
+    public void testCandidateSet() {
+        Random rand = new Random(0);
+        // Mostly small gaps, with some huge ones, crossing from positive to negative.
+        int[] seeds = new int[100000];
+        long seed = 0x7F000000L;
+        for (int i = 0; i < seeds.length; ++i) {
+            seeds[i] = (int) seed;
+            seed += rand.nextInt(20) == 0 ? 1 + rand.nextInt(1 << 16) : 1 + rand.nextInt(100);
+        }
+        CandidateSet set = new CandidateSet();
+        set.addAll(seeds, seeds.length);
+        assertEquals(seeds.length, set.size());
+        assertTrue(set.chunkCount() > 1);
+        assertArrayEquals(seeds, set.toArray());
+        assertTrue(set.contains(seeds[12345]));
+        assertFalse(set.contains(seeds[12345] + 1));
+        try {
+            set.add(seeds[10]);
+            fail("Added a seed out of order");
+        } catch (IllegalArgumentException expected) {}
+
+        // Keep every third seed, and empty out one chunk entirely.
+        int[] buffer = new int[seeds.length];
+        int kept = 0;
+        int[] expected = new int[seeds.length];
+        for (int chunk = 0; chunk < set.chunkCount(); ++chunk) {
+            int size = set.getChunk(chunk, buffer);
+            int length = 0;
+            for (int i = 0; i < size; ++i) {
+                if (chunk != 1 && (buffer[i] % 3) == 0) {
+                    buffer[length++] = buffer[i];
+                    expected[kept++] = buffer[i];
+                }
+            }
+            set.retainInChunk(chunk, buffer, length);
+        }
+        set.removeEmptyChunks();
+        assertEquals(kept, set.size());
+        assertArrayEquals(Arrays.copyOf(expected, kept), set.toArray());
+        PrimitiveIterator.OfInt iterator = set.iterator();
+        for (int i = 0; i < kept; ++i) {
+            assertEquals(expected[i], iterator.nextInt());
+        }
+        assertFalse(iterator.hasNext());
+
+        // Emptying the last chunk doesn't lose track of the order, or of how much memory is held.
+        int last = set.chunkCount() - 1;
+        int lastSeed = set.toArray()[kept - 1];
+        set.retainInChunk(last, buffer, 0);
+        assertTrue(set.memoryBytes() > 0);
+        assertEquals(set.memoryBytes(), set.heapBytes());
+        try {
+            set.add(expected[0]);
+            fail("Added a seed out of order, after an emptied chunk");
+        } catch (IllegalArgumentException outOfOrder) {}
+        set.add(lastSeed + 1);
+        assertTrue(set.contains(lastSeed + 1));
+    }
+
+    @Test
+    public void testCandidateSetSpill() throws IOException {
+        Path directory = Files.createTempDirectory("candidates");
+        CandidateSet set = new CandidateSet();
+        set.setSpillPolicy(() -> directory, 50000);
+        int[] seeds = new int[100000];
+        for (int i = 0; i < seeds.length; ++i) {
+            seeds[i] = i * 7919;
+        }
+        set.addAll(seeds, seeds.length);
+        assertTrue(set.isSpilled());
+        assertEquals(1, directory.toFile().list().length);
+        assertEquals(0, set.heapBytes());
+        assertTrue(set.memoryBytes() > 0);
+        assertArrayEquals(seeds, set.toArray());
+
+        // Shrinking below the threshold moves everything back.
+        int[] buffer = new int[seeds.length];
+        for (int chunk = 0; chunk < set.chunkCount(); ++chunk) {
+            int size = set.getChunk(chunk, buffer);
+            set.retainInChunk(chunk, buffer, chunk == 0 ? size : 0);
+        }
+        int kept = set.chunkSize(0);
+        set.removeEmptyChunks();
+        assertFalse(set.isSpilled());
+        assertEquals(0, directory.toFile().list().length);
+        assertArrayEquals(Arrays.copyOf(seeds, kept), set.toArray());
+
+        // Left behind by a crash, with something that isn't a spill file next to it.
+        Files.createFile(directory.resolve("candidates-123.bin"));
+        Files.createFile(directory.resolve("other.bin"));
+        CandidateSet.deleteSpillFiles(directory);
+        assertArrayEquals(new String[] { "other.bin" }, directory.toFile().list());
+        Files.delete(directory.resolve("other.bin"));
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testScanEngineCancel() {
+        final int[] consumed = new int[1];
+        boolean finished = new ScanEngine(() -> 4).run(1000, () -> consumed[0] >= 10, Random::new,
+                (rand, chunk) -> chunk, (chunk, result) -> consumed[0]++);
+        assertFalse(finished);
+        assertEquals(10, consumed[0]);
+    }
+
+    @Test
+    public void testScanEngineCancelWaitsForChunks() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger consumed = new AtomicInteger();
+        boolean finished = new ScanEngine(() -> 4).run(1000, () -> consumed.get() >= 10, Random::new,
+                (rand, chunk) -> {
+                    running.incrementAndGet();
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    running.decrementAndGet();
+                    return chunk;
+                }, (chunk, result) -> consumed.incrementAndGet());
+        assertFalse(finished);
+        assertEquals(0, running.get());
+    }
+
+    @Test
+    public void testCancelledRefine() throws InterruptedException {
+        final AtomicInteger chunks = new AtomicInteger();
+        SeedSolver solver = new SeedSolver(new ScanEngine(() -> 4), observation -> chunks.incrementAndGet());
+        Observation observation = getTestObservation();
+        // Consecutive seeds pack tightly, so this is hundreds of chunks.
+        for (int seed = 0; seed < 1 << 22; ++seed) {
+            solver.getCandidates().add(seed);
+        }
+        assertTrue(solver.getCandidates().chunkCount() > 100);
+        assertFalse(solver.refine(observation, () -> chunks.get() >= 3));
+
+        // Nothing from the cancelled scan is left running, to count towards the next one or read
+        // the candidates out from under clear().
+        ScanProgress progress = solver.getScanProgress();
+        progress.start(1000, 0);
+        solver.clear();
+        Thread.sleep(100);
+        assertEquals(0, progress.getPercent());
+        assertEquals(0, solver.getCandidates().size());
+
+        // And the next scan runs normally.
+        Random rand = new Random(0);
+        @SuppressWarnings("unchecked")
+        List<EnchantmentData>[] tempEnchantmentData = new List[3];
+        int expected = 0;
+        for (int seed = 0; seed < 1 << 16; ++seed) {
+            solver.getCandidates().add(seed);
+            if (SeedSolver.testEnchants(rand, seed, observation, tempEnchantmentData)) {
+                expected++;
+            }
+        }
+        assertTrue(solver.refine(observation, () -> false));
+        assertEquals(expected, solver.getCandidates().size());
+        assertEquals(100, progress.getPercent());
+    }
+
     private EnchantmentWorker runWorkerLoop(Observation observation, String useSeed)
             throws InterruptedException {
         EnchantmentWorker worker = new EnchantmentWorker(guiChat);
@@ -161,7 +465,7 @@ public class EnchantmentWorkerTest {
         worker.addObservation(observation);
         // Wait for worker to finish
         EnchantmentWorker.State state = worker.state;
-        while (state.enchants == EnchantmentWorker.NO_STRINGS && !state.isError()) {
+        while (state.enchants == EnchantmentWorker.NO_ENCHANTS && !state.isError()) {
             Thread.sleep(50);
             state = worker.state;
         }
@@ -172,8 +476,8 @@ public class EnchantmentWorkerTest {
             throws InterruptedException {
         EnchantmentWorker worker = runWorkerLoop(observation, useSeed);
         EnchantmentWorker.State state = worker.state;
-        assertEquals("enchantmentrevealer.status.possibles", state.statusMessage);
-        assertEquals(worker.candidatesLength, state.counts[2][0]);
+        assertEquals("enchantmentrevealer.status.possibles", state.getStatusMessage());
+        assertEquals(worker.candidates.size(), state.counts[2][0]);
         assertEquals("Found the wrong number of candidates!", expectedCandidates, state.counts[2][0]);
         verifyZeroInteractions(guiChat);
         return worker;
@@ -182,30 +486,87 @@ public class EnchantmentWorkerTest {
     private void runFastWorkerTest(Observation observation, int seed, int expectedCandidates)
             throws InterruptedException {
         EnchantmentWorker worker = commonWorkerTests(observation, "always", expectedCandidates);
+        int[] candidates = worker.candidates.toArray();
         int i = 0;
-        while (i < worker.candidatesLength && worker.candidates[i] != seed) {
+        while (i < candidates.length && candidates[i] != seed) {
             ++i;
         }
-        assertNotEquals("The correct seed was not among the candidates!", worker.candidatesLength, i);
-        Random rand = new Random(0);
-        ItemStack item = observation.item;
-        List<List<EnchantmentData>> cachedEnchantmentList = EnchantmentWorker.buildEnchantListCache(item);
-        Enchantment[] targets = new Enchantment[3];
-        for (i = 0; i < 3; ++i) {
-            targets[i] = Enchantment.getEnchantmentByID(observation.enchants[i]);
+        assertNotEquals("The correct seed was not among the candidates!", candidates.length, i);
+        // The checked version also verifies the weighted picks against java.util.Random.
+        FastRandom rand = new FastRandom.Checked();
+        EnchantTable table = new EnchantTable(observation.item);
+        EnchantTable.Picks picks = new EnchantTable.Picks();
+        for (i = 0; i < candidates.length; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                assertTrue("Failure for " + j + " at i=" + i,
+                        SeedSolver.testEnchantFast(rand, candidates[i], observation, table, picks, j));
+            }
         }
+    }
+
+    @Test
+    public void testEnchantFastMatches() {
+        Random rand = new Random(0);
+        FastRandom fastRand = new FastRandom.Checked();
         @SuppressWarnings("unchecked")
         List<EnchantmentData>[] tempEnchantmentData = new List[3];
-        int enchantability = item.getItem().getItemEnchantability(item);
-        for (i = 0; i < worker.candidatesLength; ++i) {
-            for (int j = 0; j < 3; ++j) {
-                assertTrue("Failure for " + j + " at i=" + i,
-                        EnchantmentWorker.testEnchantFast(rand, worker.candidates[i], observation, false,
-                                cachedEnchantmentList, tempEnchantmentData, targets[j], enchantability, j));
+        EnchantTable.Picks picks = new EnchantTable.Picks();
+        // Books drop a random pick, and the armor has lots of mutually exclusive protections.
+        for (ItemStack item : new ItemStack[] { new ItemStack(Items.BOOK), new ItemStack(Items.DIAMOND_LEGGINGS),
+                new ItemStack(Items.FISHING_ROD) }) {
+            EnchantTable table = new EnchantTable(item);
+            Observation observation = getTestObservation();
+            observation.item = item;
+            observation.levels[0] = 8;
+            observation.levels[1] = 20;
+            observation.levels[2] = 30;
+            for (int seed = 0; seed < 20000; ++seed) {
+                // Observe whatever the table actually shows, and then break it for every other seed.
+                for (int slot = 0; slot < 3; ++slot) {
+                    List<EnchantmentData> list = SeedSolver.buildEnchantmentList(rand, seed, observation, slot);
+                    observation.enchants[slot] = -1;
+                    observation.enchantLevels[slot] = -1;
+                    if (!list.isEmpty()) {
+                        EnchantmentData data = list.get(rand.nextInt(list.size()));
+                        observation.enchants[slot] = Observation.getEnchantmentID(data.enchantment);
+                        observation.enchantLevels[slot] = data.enchantmentLevel;
+                    }
+                }
+                if ((seed & 1) != 0) {
+                    observation.enchantLevels[seed % 3]++;
+                }
+                EnchantTally expected = new EnchantTally();
+                EnchantTally actual = new EnchantTally();
+                boolean passed = SeedSolver.testEnchants(rand, seed, observation, tempEnchantmentData);
+                expected.add(tempEnchantmentData);
+                boolean fastPassed = true;
+                for (int slot = 0; slot < 3; ++slot) {
+                    fastPassed &= SeedSolver.testEnchantFast(fastRand, seed, observation, table, picks, slot);
+                }
+                actual.add(table, picks);
+                assertEquals(passed, fastPassed);
+                // testEnchants() stops at the first slot that fails, so only passes have all the lists.
+                for (int slot = 0; passed && slot < 3; ++slot) {
+                    assertEquals(expected.toList(slot), actual.toList(slot));
+                }
             }
         }
     }
 
+    @Test
+    public void testEnchantTableCacheSharing() {
+        EnchantTableCache.clear();
+        ItemStack damaged = new ItemStack(Items.DIAMOND_LEGGINGS);
+        damaged.setDamage(100);
+        EnchantTable table = EnchantTableCache.get(new ItemStack(Items.DIAMOND_LEGGINGS));
+        assertSame(table, EnchantTableCache.get(damaged));
+        assertSame(EnchantTableCache.get(new ItemStack(Items.BOOK)),
+                EnchantTableCache.get(new ItemStack(Items.ENCHANTED_BOOK)));
+        // Same enchantability, but they can't roll the same enchants.
+        assertNotSame(table, EnchantTableCache.get(new ItemStack(Items.DIAMOND_HELMET)));
+        assertNotSame(table, EnchantTableCache.get(new ItemStack(Items.IRON_LEGGINGS)));
+    }
+
     @Test
     public void testFastFullRun() throws InterruptedException { runFastWorkerTest(getTestObservation(), 0x12347, 12); }
 
@@ -218,8 +579,8 @@ public class EnchantmentWorkerTest {
     public void testUnenchantableObservation() throws InterruptedException {
         EnchantmentWorker worker = runWorkerLoop(getUnenchantableObservation(), "always");
         EnchantmentWorker.State state = worker.state;
-        assertEquals("§cenchantmentrevealer.error.mainmessage", state.statusMessage);
-        assertEquals(0, worker.candidatesLength);
+        assertEquals("§cenchantmentrevealer.error.mainmessage", state.getStatusMessage());
+        assertEquals(0, worker.candidates.size());
         InOrder ordered = inOrder(guiChat);
         ordered.verify(guiChat)
                 .printChatMessage(new TextComponentTranslation("enchantmentrevealer.error.part1",
@@ -235,22 +596,234 @@ public class EnchantmentWorkerTest {
         verifyNoMoreInteractions(guiChat);
     }
 
+    @Test
+    public void testSnapshotResume() throws InterruptedException, IOException {
+        Path directory = Files.createTempDirectory("snapshots");
+        SimpleCommentedConfig config = new SimpleCommentedConfig();
+        EnchantmentRevealer.configSpec.setConfig(config);
+        config.set("client.useSeedHint", "always");
+        EnchantmentWorker worker = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_player"), null);
+        worker.addObservation(getTestObservation());
+        while (worker.state.enchants == EnchantmentWorker.NO_ENCHANTS) {
+            Thread.sleep(50);
+        }
+        while (worker.thread != null) {
+            Thread.sleep(10);
+        }
+
+        EnchantmentWorker resumed = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_player"), null);
+        resumed.resume();
+        while (resumed.state.enchants == EnchantmentWorker.NO_ENCHANTS) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(worker.candidates.toArray(), resumed.candidates.toArray());
+        assertEquals(worker.state.getStatusMessage(), resumed.state.getStatusMessage());
+        for (int i = 0; i < 3; ++i) {
+            assertArrayEquals(worker.state.enchants[i], resumed.state.enchants[i]);
+            assertArrayEquals(worker.state.counts[i], resumed.state.counts[i]);
+        }
+        // A different key doesn't pick it up.
+        EnchantmentWorker other = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_other"), null);
+        other.resume();
+        while (other.thread != null) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, other.candidates.size());
+
+        // Resetting throws the snapshot away.
+        resumed.setDisabled(true);
+        while (resumed.thread != null) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, directory.toFile().list().length);
+        Files.delete(directory);
+        verifyZeroInteractions(guiChat);
+    }
+
+    @Test
+    public void testFusedFallback() {
+        // Low enough to be in the part of the space the solvers are limited to.
+        final int seed = 0x01234567;
+        final int log2Fraction = 6;
+        // A hint that doesn't go with the seed, like a server that masks it would send.
+        final int badHint = (seed ^ 0x5550) & 0xFFF0;
+        // The weak one is first, so the (last) observation that's tallied isn't the only one that
+        // could drive the scan.
+        List<Observation> observations = Arrays.asList(observe(seed, new ItemStack(Items.FISHING_ROD), 0, badHint),
+                observe(seed, new ItemStack(Items.BOOK), 15, badHint),
+                observe(seed, new ItemStack(Items.DIAMOND_LEGGINGS), 15, badHint));
+        @SuppressWarnings("unchecked")
+        List<EnchantmentData>[] tempEnchantmentData = new List[3];
+        for (Observation observation : observations) {
+            assertTrue(observation.hasEnchants());
+            assertTrue(SeedSolver.testLevels(new Random(), seed, observation));
+            assertTrue(SeedSolver.testEnchants(new Random(), seed, observation, tempEnchantmentData));
+        }
+
+        // The hinted scan of the last observation comes up empty, so everything is redone at once.
+        SeedSolver fused = new SeedSolver(new ScanEngine(() -> 4), observation -> {});
+        fused.log2Fraction = log2Fraction;
+        assertEquals(SeedSolver.Outcome.SOLVED,
+                fused.solve(observations, null, SeedSolver.HintMode.SOMETIMES, () -> false));
+        assertTrue(fused.didFallback());
+        assertTrue(fused.getCandidates().contains(seed));
+
+        // The same as a full scan of the first, refined by the rest.
+        SeedSolver chained = new SeedSolver(new ScanEngine(() -> 4), observation -> {});
+        chained.log2Fraction = log2Fraction;
+        for (int i = 1; i <= observations.size(); ++i) {
+            assertEquals(SeedSolver.Outcome.SOLVED, chained.solve(observations.subList(0, i), null,
+                    SeedSolver.HintMode.NEVER, () -> false));
+        }
+        assertArrayEquals(chained.getCandidates().toArray(), fused.getCandidates().toArray());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(chained.getTallies().toList(i), fused.getTallies().toList(i));
+        }
+    }
+
+    @Test
+    public void testCloseMidScanThenResume() throws InterruptedException, IOException {
+        Path directory = Files.createTempDirectory("snapshots");
+        SimpleCommentedConfig config = new SimpleCommentedConfig();
+        EnchantmentRevealer.configSpec.setConfig(config);
+        config.set("client.useSeedHint", "never");
+        EnchantmentWorker worker = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_player"), null);
+        worker.addObservation(getTestObservation());
+        // Wait for the full scan to be underway, so that closing checkpoints it.
+        while (worker.solver.getProgress() == null) {
+            Thread.sleep(10);
+        }
+        worker.close();
+
+        // Right away, like Events does, while the old worker might still be writing the checkpoint.
+        EnchantmentWorker resumed = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_player"), null);
+        resumed.resume(worker);
+        while (!resumed.state.isInProgress() && resumed.thread != null) {
+            Thread.sleep(10);
+        }
+        assertNull(worker.thread);
+        assertTrue("The checkpoint wasn't picked up", resumed.state.isInProgress());
+
+        // Resetting throws the snapshot away, and nothing late brings it back.
+        resumed.setDisabled(true);
+        while (resumed.thread != null) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, directory.toFile().list().length);
+        Files.delete(directory);
+        verifyZeroInteractions(guiChat);
+    }
+
+    @Test
+    public void testSessionCache() throws InterruptedException, IOException {
+        Path directory = Files.createTempDirectory("snapshots");
+        SimpleCommentedConfig config = new SimpleCommentedConfig();
+        EnchantmentRevealer.configSpec.setConfig(config);
+        config.set("client.useSeedHint", "always");
+        EnchantmentWorker first = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_first"), null);
+        EnchantmentWorker second = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_second"), null);
+        for (EnchantmentWorker worker : new EnchantmentWorker[] { first, second }) {
+            worker.addObservation(getTestObservation());
+            while (!worker.isIdle()) {
+                Thread.sleep(10);
+            }
+        }
+        long[] budget = { first.memoryBytes() + second.memoryBytes() };
+        SessionCache sessions = new SessionCache(() -> budget[0]);
+        sessions.park(first);
+        sessions.park(second);
+        assertEquals(2, sessions.size());
+        assertEquals(budget[0], sessions.memoryBytes());
+        assertSame(first, sessions.take("server_first"));
+        assertEquals(1, sessions.size());
+        sessions.park(first);
+
+        // Over budget, so the least recently parked one goes, and lets go of its candidates.
+        budget[0] = first.memoryBytes();
+        int[] seeds = first.candidates.toArray();
+        EnchantmentWorker third = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_third"), null);
+        sessions.park(third);
+        assertNull(sessions.take("server_second"));
+        assertEquals(0, second.candidates.size());
+        assertSame(first, sessions.take("server_first"));
+        assertArrayEquals(seeds, first.candidates.toArray());
+        assertSame(third, sessions.take("server_third"));
+
+        // Workers holding nothing are still capped, and have their traces closed while parked.
+        Path traceFile = Files.createTempFile("trace", ".trace");
+        ObservationTrace trace = new ObservationTrace(traceFile);
+        trace.record(getTestObservation());
+        EnchantmentWorker traced = new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_0"), trace);
+        sessions.park(traced);
+        assertTrue(trace.awaitClosed(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= SessionCache.MAX_SESSIONS; ++i) {
+            sessions.park(new EnchantmentWorker(guiChat, new SnapshotStore(directory, "server_" + i), null));
+        }
+        assertEquals(SessionCache.MAX_SESSIONS, sessions.size());
+        assertNull(sessions.take("server_0"));
+        Files.delete(traceFile);
+
+        for (String file : directory.toFile().list()) {
+            Files.delete(directory.resolve(file));
+        }
+        Files.delete(directory);
+        verifyZeroInteractions(guiChat);
+    }
+
+    @Test
+    public void testTraceRoundTrip() throws IOException, InterruptedException {
+        Path file = Files.createTempFile("trace", ".trace");
+        Observation first = getTestObservation();
+        first.now = 1550000000000L;
+        first.tick = 12;
+        Observation weak = getWeakObservation();
+        weak.now = first.now + 1500;
+        Observation reset = new Observation();
+        reset.truncatedSeed = 2;
+        reset.power = Observation.RESET_POWER;
+        reset.item = new ItemStack(Items.DIAMOND_CHESTPLATE);
+        reset.item.addEnchantment(Enchantment.getEnchantmentByID(0), 3);
+        reset.now = weak.now - 20; // Clocks can go backwards
+        ObservationTrace trace = new ObservationTrace(file);
+        trace.record(first);
+        trace.record(weak);
+        trace.record(reset);
+        trace.close();
+        assertTrue(trace.awaitClosed(10, TimeUnit.SECONDS));
+
+        List<Observation> read = ObservationTrace.read(file);
+        assertEquals(Arrays.asList(first, weak, reset), read);
+        for (int i = 0; i < read.size(); ++i) {
+            assertEquals(Arrays.asList(first, weak, reset).get(i).now, read.get(i).now);
+        }
+        assertEquals(12, read.get(0).tick);
+        assertEquals(EnchantmentHelper.getEnchantments(reset.item),
+                EnchantmentHelper.getEnchantments(read.get(2).item));
+
+        // A crash mid-record loses just that record.
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 2));
+        assertEquals(Arrays.asList(first, weak), ObservationTrace.read(file));
+        Files.delete(file);
+    }
+
     // These tests take >1 minute to run.
     private void runSlowWorkerTest(Observation observation, int seed, int expectedCandidates)
             throws InterruptedException {
         EnchantmentWorker worker = commonWorkerTests(observation, "never", expectedCandidates);
+        int[] candidates = worker.candidates.toArray();
         int i = 0;
-        while (i < worker.candidatesLength && worker.candidates[i] != seed) {
+        while (i < candidates.length && candidates[i] != seed) {
             ++i;
         }
-        assertNotEquals("The correct seed was not among the candidates!", worker.candidatesLength, i);
+        assertNotEquals("The correct seed was not among the candidates!", candidates.length, i);
         Random rand = new Random(0);
         @SuppressWarnings("unchecked")
         List<EnchantmentData>[] tempEnchantmentData = new List[3];
-        for (i = 0; i < worker.candidatesLength; ++i) {
+        for (i = 0; i < candidates.length; ++i) {
             assertTrue("Failure at i=" + i,
-                    EnchantmentWorker.testEnchants(
-                            rand, worker.candidates[i], observation, tempEnchantmentData));
+                    SeedSolver.testEnchants(
+                            rand, candidates[i], observation, tempEnchantmentData));
         }
     }
 